@@ -1,15 +1,18 @@
 package com.c8y.notification;
 
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
 
 import org.eclipse.jetty.websocket.api.UpgradeException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,37 +21,48 @@ import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ResponseStatusException;
 
+import com.c8y.notification.handler.DeviceListener;
+import com.c8y.notification.handler.InventoryNotificationHandler;
+import com.c8y.notification.handler.NotificationHandlerRegistry;
 import com.c8y.notification.model.API;
 import com.c8y.notification.model.ConnectionStatus;
-import com.c8y.notification.model.MeasurementNotificationRepresentation;
+import com.c8y.notification.model.SubscriptionDeletionJob;
+import com.c8y.notification.model.SubscriptionMode;
 import com.c8y.notification.model.WebsocketConnection;
+import com.c8y.notification.platform.DeviceHierarchyWalker;
+import com.c8y.notification.platform.InventoryScanner;
+import com.c8y.notification.platform.SubscribedSources;
+import com.c8y.notification.platform.SubscriptionReconciler;
 import com.c8y.notification.platform.SubscriptionRepository;
+import com.c8y.notification.platform.TokenCache;
 import com.c8y.notification.platform.TokenService;
 import com.c8y.notification.service.AlarmService;
-import com.c8y.notification.util.CustomQueryParam;
+import com.c8y.notification.service.SubscriptionDeletionService;
+import com.c8y.notification.service.TenantStartupCoordinator;
 import com.c8y.notification.util.PlatformUtils;
 import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.ConnectionRegistry;
 import com.c8y.notification.websocket.NotificationCallback;
+import com.c8y.notification.websocket.NotificationDispatcher;
+import com.c8y.notification.websocket.ReconnectScheduler;
+import com.c8y.notification.websocket.ReconnectScheduler.Cause;
+import com.c8y.notification.websocket.jetty.AckWriter;
 import com.c8y.notification.websocket.jetty.JettyWebSocketClient;
+import com.c8y.notification.websocket.jetty.JettyWebSocketResources;
 import com.cumulocity.microservice.subscription.model.MicroserviceSubscriptionAddedEvent;
 import com.cumulocity.microservice.subscription.model.MicroserviceSubscriptionRemovedEvent;
 import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
 import com.cumulocity.model.idtype.GId;
-import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceRepresentation;
 import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
 import com.cumulocity.rest.representation.reliable.notification.NotificationSubscriptionFilterRepresentation;
 import com.cumulocity.rest.representation.reliable.notification.NotificationSubscriptionRepresentation;
 import com.cumulocity.rest.representation.reliable.notification.NotificationTokenRequestRepresentation;
-import com.cumulocity.sdk.client.QueryParam;
-import com.cumulocity.sdk.client.inventory.InventoryApi;
-import com.cumulocity.sdk.client.inventory.InventoryFilter;
-import com.cumulocity.sdk.client.inventory.ManagedObjectCollection;
 import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionApi;
 import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionCollection;
 import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionFilter;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Lists;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -67,25 +81,19 @@ import lombok.extern.slf4j.Slf4j;
 @Component
 @Slf4j
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
-public class NotificationDriverService {
+public class NotificationDriverService implements DeviceListener {
 
-	private final static String WEBSOCKET_URL_PATTERN = "%s/notification2/consumer/?token=%s";
 	private static final String MEASUREMENT_SUBSCRIPTION_NAME = "deviceMeasurementSubscription";
+	private static final String TENANT_MEASUREMENT_SUBSCRIPTION_NAME = "tenantMeasurementSubscription";
 	private final Properties properties;
-	private List<String> devices = new ArrayList<>();
-	// tenantid - websocket connection object
-	private HashMap<String, WebsocketConnection> websocketConnections = new HashMap<>();
-	// for reconnect thread
+	// tenantid - websocket connection objects, one per consumer
+	private final ConnectionRegistry websocketConnections = new ConnectionRegistry();
+	// for connection check thread
 	private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
-	// tenantid - hostname e.g. t10452223 -
-	// https://psfactory.eu-latest.cumulocity.com/
-	private HashMap<String, String> tenantIdToHostName = new HashMap<>();
 
 	private static final int RECONNECT_DELAY = 120;
 
-	private boolean reconnectFlag = true;
-
-	private Optional<String> microserviceMOId = Optional.empty();
+	private final AtomicBoolean reconnectFlag = new AtomicBoolean(true);
 
 	@Autowired
 	private final TokenService tokenService;
@@ -96,9 +104,6 @@ public class NotificationDriverService {
 	@Autowired
 	private NotificationSubscriptionApi subscriptionApi;
 
-	@Autowired
-	private InventoryApi inventoryApi;
-
 	@Autowired
 	private MicroserviceSubscriptionsService subscriptionsService;
 
@@ -108,51 +113,116 @@ public class NotificationDriverService {
 	@Autowired
 	AlarmService alarmService;
 
+	@Autowired
+	private NotificationDispatcher dispatcher;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private JettyWebSocketResources webSocketResources;
+
+	@Autowired
+	private ReconnectScheduler reconnectScheduler;
+
+	@Autowired
+	private TokenCache tokenCache;
+
+	@Autowired
+	private NotificationHandlerRegistry handlerRegistry;
+
+	@Autowired
+	private SubscriptionReconciler subscriptionReconciler;
+
+	@Autowired
+	private InventoryScanner inventoryScanner;
+
+	@Autowired
+	private SubscribedSources subscribedSources;
+
+	@Autowired
+	private DeviceHierarchyWalker hierarchyWalker;
+
+	@Autowired
+	private SubscriptionDeletionService subscriptionDeletionService;
+
+	@Autowired
+	private TenantStartupCoordinator startupCoordinator;
+
+	@Autowired
+	private TenantMOSubscriber tenantMOSubscriber;
+
+	@Autowired
+	private InventoryNotificationHandler inventoryHandler;
+
 	private ObjectMapper objectMapper = new ObjectMapper();
 
+	/*
+	 * The inventory handler only knows the listener, it does not depend on this
+	 * service.
+	 */
+	@PostConstruct
+	public void registerDeviceListener() {
+		inventoryHandler.setDeviceListener(this);
+	}
+
 	/**
 	 * 
 	 * Upon microservice startup, a subscription event is received. Use this to
 	 * initialize your microservice state for that tenant
 	 * 
+	 * The initialization itself is queued in the startup coordinator, at startup
+	 * the events of all tenants arrive at once.
+	 * 
 	 * @param event microservice subscription event
 	 * 
 	 */
 	@EventListener
 	public void onSubscriptionAdded(MicroserviceSubscriptionAddedEvent event) {
+		final String tenantId = event.getCredentials().getTenant();
+		log.info("Subscription added for Tenant ID: <{}> ", tenantId);
+		log.info("Subscription added for API Key ID: {} ", event.getCredentials().getAppKey());
+		log.info("Subscription added for user ID: {} ", event.getCredentials().getUsername());
+
+		/* the worker threads are outside of the event's tenant context */
+		startupCoordinator.submit(tenantId, () -> subscriptionsService.runForTenant(tenantId, () -> {
+			initializeTenant(tenantId);
+		}));
+
+		if (reconnectFlag.compareAndSet(true, false)) {
+			log.info("Starting connection check thread...");
+			executorService.scheduleAtFixedRate(() -> {
+				checkConnections();
+			}, 30, RECONNECT_DELAY, TimeUnit.SECONDS);
+		}
+	}
+
+	private void initializeTenant(String tenantId) {
 		try {
 
-			if (microserviceMOId.isEmpty()) {
-				microserviceMOId = platformUtils.getMicroserviceMOId();
+			/* loads the cache, the socket callbacks only read it */
+			if (platformUtils.getMicroserviceMOId(tenantId).isEmpty()) {
+				log.warn("Unable to get microservice managed object id for tenant {}", tenantId);
 			}
-			final String tenantId = event.getCredentials().getTenant();
 			log.info("Initializing notification listener for tenant: " + tenantId);
 
-			Optional<String> temp = platformUtils.getHost();
+			Optional<String> temp = platformUtils.getHost(tenantId);
 			if (temp.isEmpty()) {
 				log.error(
 						"Unable to extract base url for the tenant. Will not be able to subscribe to notifications... exiting process initialization for tenant: {}.",
 						tenantId);
 				return;
 			}
-			String platformBaseURL = temp.get();
-
-			String websocketUrl = "wss://" + platformBaseURL + ":443";
-			tenantIdToHostName.put(tenantId, websocketUrl);
 
 			log.info("WEBSOCKET_URL_Libarry: {}", properties.getWebSocketLibrary());
-			log.info("Subscription added for Tenant ID: <{}> ", tenantId);
-			log.info("Subscription added for API Key ID: {} ", event.getCredentials().getAppKey());
-			log.info("Subscription added for user ID: {} ", event.getCredentials().getUsername());
-
-			// subscribeAllDevices(tenantId);
-
-			if (reconnectFlag) {
-				log.info("Starting reconnect thread...");
-				executorService.scheduleAtFixedRate(() -> {
-					reconnect();
-				}, 30, RECONNECT_DELAY, TimeUnit.SECONDS);
-				reconnectFlag = false;
+
+			if (properties.isStartupConnect()) {
+				subscribeAllDevices(tenantId);
+				/*
+				 * devices created or attached from now on are subscribed incrementally, see
+				 * onDeviceCreated
+				 */
+				tenantMOSubscriber.initTenantClient(tenantId);
 			}
 
 		} catch (Exception e) {
@@ -161,11 +231,47 @@ public class NotificationDriverService {
 
 	}
 
-	private void connectAndReceiveNotifications(String tenantId, String token) throws Exception {
+	/*
+	 * Opens the consumer connections of a tenant, for every subscription (shard)
+	 * its own. With a non-shared token this is exactly one connection per
+	 * subscription. With shared tokens every consumer gets its own connection on
+	 * the same subscription and the platform load balances the messages across
+	 * all consumers of all replicas.
+	 *
+	 * The connections are registered before they are opened, the callbacks of a
+	 * fast connect already find them. A tenant that is connected already is left
+	 * as it is.
+	 */
+	private void connectAndReceiveNotifications(String tenantId) throws Exception {
 
 		log.info("connect and reveive notificaitons...");
-		final URI webSocketUri = getWebSocketUrl(token, tenantId);
+		List<WebsocketConnection> consumers = new ArrayList<>();
+		for (String subscription : getSubscriptionNames()) {
+			String token = tokenCache.get(tenantId, subscription, tenantId + properties.getSubscriber(),
+					isSharedConsumers());
+			for (String consumer : getConsumerNames()) {
+				consumers.add(new WebsocketConnection(null, ConnectionStatus.INITIALIZING, token, consumer,
+						subscription));
+			}
+		}
+		if (!websocketConnections.register(tenantId, consumers)) {
+			log.info("Tenant {} is already connected", tenantId);
+			return;
+		}
+		startupCoordinator.onConnect(tenantId);
+		for (WebsocketConnection con : consumers) {
+			connectConsumer(tenantId, con);
+		}
+	}
+
+	private void connectConsumer(String tenantId, WebsocketConnection connection) throws Exception {
 
+		final URI webSocketUri = platformUtils.getWebSocketUrl(connection.getToken(), tenantId,
+				connection.getConsumer());
+		final String subscriptionName = connection.getSubscription();
+		final String consumerName = connection.getConsumer() == null ? subscriptionName : connection.getConsumer();
+
+		final int generation = connection.getGeneration();
 		final NotificationCallback callback = new NotificationCallback() {
 
 			@Override
@@ -173,9 +279,14 @@ public class NotificationDriverService {
 				log.info(
 						"WEBSOCKET CONNECTION ESTABLISHED: Connected to Cumulocity notification service over WebSocket "
 								+ uri);
-				websocketConnections.get(tenantId).setConnectionStatus(ConnectionStatus.CONNECTED);
+				if (!connection.connected()) {
+					closeIfRemoved(connection);
+					return;
+				}
+				reconnectScheduler.succeeded(reconnectKey(tenantId, connection));
+				Optional<String> microserviceMOId = platformUtils.getCachedMicroserviceMOId(tenantId);
 				if (microserviceMOId.isPresent()) {
-					alarmService.clearWebsocketDisconnectAlarm(microserviceMOId.get(),
+					alarmService.clearDisconnectAlarm(tenantId, microserviceMOId.get(),
 							"WebsocketDisconnect" + tenantId);
 				} else {
 					log.warn("Unable to get microservice managed object id. Unable to post alarm");
@@ -184,22 +295,11 @@ public class NotificationDriverService {
 
 			@Override
 			public void onNotification(String tenantId, Notification notification) {
-				log.debug("Notification received: <{}>", notification.getMessage());
-				try {
-					String header = notification.getNotificationHeaders().get(0);
-					int start = header.indexOf("/") + 1;
-					int end = header.indexOf("/", start + 1);
-					String tenant = header.substring(start, end);
-
-					// Call your service here to handle the message, An example how to extract a
-					// measurement
-					MeasurementNotificationRepresentation m = objectMapper.readValue(notification.getMessage(),
-							MeasurementNotificationRepresentation.class);
-
-				} catch (Exception e) {
-					log.error("Error in onNotification.");
-					log.error(e.getMessage());
+				if (log.isDebugEnabled()) {
+					log.debug("Notification received: <{}>", notification.getMessage());
 				}
+				// routed by API, see MeasurementNotificationHandler for an example
+				handlerRegistry.handle(tenantId, subscriptionName, consumerName, notification);
 			}
 
 			@Override
@@ -207,12 +307,23 @@ public class NotificationDriverService {
 
 				log.error("We got an exception: " + t);
 				if (t instanceof UpgradeException) {
-				
+						if (!connection.disconnected(generation)) {
+							/* closed, or the disconnect was handled already */
+							return;
+						}
 						log.warn(
 								"The websocket connection was not successful. Will attempt to reconnect after delay...");
-						websocketConnections.get(tenantId).setConnectionStatus(ConnectionStatus.DISCONNECTED);
+						Cause cause = ReconnectScheduler.causeOf(t);
+						if (cause != Cause.CONFLICT) {
+							/* the token might have been rejected, do not reuse it */
+							tokenCache.invalidate(tenantId, subscriptionName,
+									tenantId + properties.getSubscriber(), isSharedConsumers());
+						}
+						scheduleReconnect(tenantId, connection, cause);
+						Optional<String> microserviceMOId = platformUtils.getCachedMicroserviceMOId(tenantId);
 						if (microserviceMOId.isPresent()) {
-							alarmService.createAlarm(microserviceMOId.get(), "WebsocketDisconnect" + tenantId);
+							alarmService.raiseDisconnectAlarm(tenantId, microserviceMOId.get(),
+									"WebsocketDisconnect" + tenantId);
 						} else {
 							log.warn("Unable to get microservice managed object id. Unable to post alarm");
 						}
@@ -223,10 +334,15 @@ public class NotificationDriverService {
 			@Override
 			public void onClose(String tenantId) {
 				log.info("Connection was closed for tenant:" + tenantId);
-				websocketConnections.get(tenantId).setConnectionStatus(ConnectionStatus.DISCONNECTED);
+				if (!connection.disconnected(generation)) {
+					return;
+				}
+				scheduleReconnect(tenantId, connection, Cause.FAILURE);
 
+				Optional<String> microserviceMOId = platformUtils.getCachedMicroserviceMOId(tenantId);
 				if (microserviceMOId.isPresent()) {
-					alarmService.createAlarm(microserviceMOId.get(), "WebsocketDisconnect" + tenantId);
+					alarmService.raiseDisconnectAlarm(tenantId, microserviceMOId.get(),
+							"WebsocketDisconnect" + tenantId);
 				} else {
 					log.warn("Unable to get microservice managed object id. Unable to post alarm");
 				}
@@ -239,12 +355,16 @@ public class NotificationDriverService {
 			log.info("WebSocket library: Jetty");
 
 			try {
-				JettyWebSocketClient client = new JettyWebSocketClient(webSocketUri, callback, tenantId).connect();
-				WebsocketConnection con = new WebsocketConnection(client, ConnectionStatus.INITIALIZING, token);
-				websocketConnections.put(tenantId, con);
+				JettyWebSocketClient client = new JettyWebSocketClient(webSocketUri, callback, dispatcher,
+						newAckWriter(tenantId, consumerName), webSocketResources, tenantId, subscriptionName,
+						consumerName).connect();
+				connection.setWsClient(client);
+				closeIfRemoved(connection);
 			} catch (Exception e) {
 				log.error("An error occurred while trying to connect the WebSocket. ");
-
+				if (connection.disconnected(generation)) {
+					scheduleReconnect(tenantId, connection, Cause.FAILURE);
+				}
 			}
 		} else {
 			log.error("Expected jetty library in applicaiton settings....");
@@ -253,54 +373,157 @@ public class NotificationDriverService {
 		}
 	}
 
+	private AckWriter newAckWriter(String tenantId, String connectionName) {
+		return new AckWriter(tenantId, connectionName, properties.getAckBatchSize(),
+				properties.getAckFlushIntervalMillis(), meterRegistry);
+	}
+
+	private boolean isTenantMode() {
+		return properties.getSubscriptionMode() == SubscriptionMode.TENANT;
+	}
+
 	/*
-	 * The reconnect function is called periodically, it loops over the map and
-	 * checks if any tenant is disconnected. If yes, tries to reconnect
+	 * The subscriptions a tenant consumes, one per shard in device mode.
 	 */
-	private void reconnect() {
-
-		JettyWebSocketClient wsClient;
-		for (String tenant : websocketConnections.keySet()) {
-			WebsocketConnection connection = websocketConnections.get(tenant);
-			wsClient = connection.getWsClient();
-			if (wsClient != null) {
-				if (wsClient.getClient().isFailed() || wsClient.getClient().isStopped()
-						|| wsClient.getClient().isStopping()
-						|| connection.getConnectionStatus().equals(ConnectionStatus.DISCONNECTED)) {
-					log.info("Current websocket state:" + wsClient.getClient().getState());
-					log.info("Disconnect detected for tenant: {} Reconnecting....", tenant);
-
-					try {
-						String token = subscriptionsService.callForTenant(tenant, () -> {
-							return createToken(MEASUREMENT_SUBSCRIPTION_NAME, tenant + properties.getSubscriber());
-						});
-						try {
-							/*
-							 * An immediate reconnect might result in connection conflict on the server
-							 * side. The server maintains the state of the websocket connection. upon
-							 * disconnect, it might take up to 5 minutes till this state is cleared. The
-							 * reconnect logic should keep trying till successful
-							 */
-							log.info("Wait 120 seconds before reconnect...");
-							Thread.sleep(120000);
-						} catch (InterruptedException ex) {
-							Thread.currentThread().interrupt();
-						}
-						log.info("New token created...");
-						connection.setConnectionStatus(ConnectionStatus.RECONNECTING);
-						connectAndReceiveNotifications(tenant, token);
+	private List<String> getSubscriptionNames() {
+		if (isTenantMode()) {
+			return List.of(TENANT_MEASUREMENT_SUBSCRIPTION_NAME);
+		}
+		return SubscriptionReconciler.shardNames(MEASUREMENT_SUBSCRIPTION_NAME, properties.getSubscriptionShards());
+	}
 
-					} catch (Exception e) {
-						log.error("Error occured in notification service: {}", e.getLocalizedMessage());
-						log.info("If websocket disconnect is detected, reconnect will be initiated after 30 seconds");
-					}
+	private String getDeviceSubscriptionName(String deviceId) {
+		return SubscriptionReconciler.shardName(MEASUREMENT_SUBSCRIPTION_NAME, properties.getSubscriptionShards(),
+				deviceId);
+	}
+
+	private boolean isSharedConsumers() {
+		return properties.isSharedConsumers() || properties.getConsumersPerTenant() > 1;
+	}
+
+	/*
+	 * Consumer names must be unique across all replicas, therefore the pod name
+	 * is part of it. Returns a single null consumer for non-shared tokens.
+	 */
+	private List<String> getConsumerNames() {
+		List<String> consumers = new ArrayList<>();
+		if (!isSharedConsumers()) {
+			consumers.add(null);
+			return consumers;
+		}
+		String podName = Optional.ofNullable(System.getenv("HOSTNAME")).orElse("consumer");
+		for (int i = 0; i < properties.getConsumersPerTenant(); i++) {
+			consumers.add(podName + "-" + i);
+		}
+		return consumers;
+	}
+
+	/*
+	 * The check is called periodically as a safety net, it loops over the registry
+	 * and schedules a reconnect for every consumer that is disconnected. Disconnects
+	 * are normally scheduled right away from onClose/onError, scheduling the same
+	 * consumer twice has no effect. A failed client without a close callback is
+	 * marked disconnected here, unless a reconnect is already in progress.
+	 */
+	private void checkConnections() {
+		for (String tenant : websocketConnections.getTenants()) {
+			for (WebsocketConnection connection : websocketConnections.get(tenant)) {
+				JettyWebSocketClient wsClient = connection.getWsClient();
+				ConnectionStatus status = connection.getConnectionStatus();
+				if (wsClient != null && wsClient.isFailed() && status == ConnectionStatus.CONNECTED) {
+					connection.disconnected();
+				}
+				if (wsClient != null && connection.getConnectionStatus() == ConnectionStatus.DISCONNECTED) {
+					log.info("Disconnect detected for tenant: {} consumer: {}", tenant, connection.getConsumer());
+					scheduleReconnect(tenant, connection, Cause.FAILURE);
 				}
 			}
 		}
 	}
 
-	public URI getWebSocketUrl(String token, String tenantId) throws URISyntaxException {
-		return new URI(String.format(WEBSOCKET_URL_PATTERN, tenantIdToHostName.get(tenantId), token));
+	/*
+	 * An immediate reconnect might result in connection conflict (409) on the
+	 * server side. The server maintains the state of the websocket connection.
+	 * Upon disconnect, it might take up to 5 minutes till this state is cleared.
+	 * The reconnect scheduler backs off and keeps trying till successful.
+	 */
+	private void scheduleReconnect(String tenantId, WebsocketConnection connection, Cause cause) {
+		reconnectScheduler.schedule(reconnectKey(tenantId, connection), cause,
+				() -> reconnect(tenantId, connection));
+	}
+
+	/*
+	 * Removes and closes the consumers of a tenant, pending reconnects will not
+	 * connect them again.
+	 */
+	private List<WebsocketConnection> removeConnections(String tenantId) {
+		List<WebsocketConnection> consumers = websocketConnections.remove(tenantId);
+		for (WebsocketConnection connection : consumers) {
+			reconnectScheduler.cancel(reconnectKey(tenantId, connection));
+		}
+		return consumers;
+	}
+
+	private String reconnectKey(String tenantId, WebsocketConnection connection) {
+		return connection.getSubscription() + "/" + tenantId + "/" + connection.getConsumer();
+	}
+
+	/*
+	 * Only the caller that moves the connection from DISCONNECTED to RECONNECTING
+	 * opens a new socket. A connection that was removed in the meantime, or that
+	 * is already connected again, is skipped. If the token or the url cannot be
+	 * resolved the connection goes back to DISCONNECTED and the scheduler
+	 * retries.
+	 */
+	private void reconnect(String tenant, WebsocketConnection connection) throws Exception {
+		if (!websocketConnections.isActive(tenant, connection)) {
+			log.info("Tenant {} is no longer subscribed, reconnect skipped", tenant);
+			return;
+		}
+		if (!connection.transition(ConnectionStatus.DISCONNECTED, ConnectionStatus.RECONNECTING)) {
+			log.debug("Connection of tenant {} consumer {} is {}, reconnect skipped", tenant,
+					connection.getConsumer(), connection.getConnectionStatus());
+			return;
+		}
+		/* the close of the old socket must not disconnect the new one */
+		connection.nextGeneration();
+		log.info("Reconnecting tenant: {} consumer: {}....", tenant, connection.getConsumer());
+		String token;
+		try {
+			token = subscriptionsService.callForTenant(tenant, () -> {
+				return tokenCache.get(tenant, connection.getSubscription(), tenant + properties.getSubscriber(),
+						isSharedConsumers());
+			});
+		} catch (RuntimeException e) {
+			connection.transition(ConnectionStatus.RECONNECTING, ConnectionStatus.DISCONNECTED);
+			throw e;
+		}
+		JettyWebSocketClient wsClient = connection.getWsClient();
+		if (wsClient != null) {
+			wsClient.disconnect();
+		}
+		connection.setToken(token);
+		try {
+			connectConsumer(tenant, connection);
+		} catch (Exception e) {
+			connection.transition(ConnectionStatus.RECONNECTING, ConnectionStatus.DISCONNECTED);
+			throw e;
+		}
+	}
+
+	/*
+	 * A connection that was removed while its socket was opening is closed again.
+	 */
+	private void closeIfRemoved(WebsocketConnection connection) {
+		JettyWebSocketClient wsClient = connection.getWsClient();
+		if (connection.isClosed() && wsClient != null) {
+			log.info("Connection was removed while connecting, disconnecting");
+			try {
+				wsClient.disconnect();
+			} catch (Exception e) {
+				log.error("Unable to disconnect removed websocket: {}", e.getMessage());
+			}
+		}
 	}
 
 	private NotificationSubscriptionRepresentation createSubscription(String deviceId) {
@@ -325,34 +548,23 @@ public class NotificationDriverService {
 	}
 
 	/*
-	 * delete all device/child device subscriptions for a tenant.
+	 * delete all device/child device subscriptions for a tenant. Runs in the
+	 * background, the returned job reports the progress. The measurement
+	 * subscription name covers all of its shards.
 	 */
-	public void deleteDeviceSubscriptionsBySubscriptionNameForAllDevices(String subscriptionName) {
-
-		Optional<Iterator<ManagedObjectRepresentation>> itOpt = getAllDeviceIterator();
-		if (itOpt.isPresent()) {
-			Iterator<ManagedObjectRepresentation> it = itOpt.get();
-			while (it.hasNext()) {
-				ManagedObjectRepresentation device = it.next();
-				try {
-					unsubscribeDevice(subscriptionsService.getTenant(), device.getId().getValue(), subscriptionName);
-					Iterator<ManagedObjectReferenceRepresentation> childDevices = device.getChildDevices().iterator();
-					while (childDevices.hasNext()) {
-						ManagedObjectRepresentation child = childDevices.next().getManagedObject();
-						unsubscribeDevice(subscriptionsService.getTenant(), child.getId().getValue(), subscriptionName);
-					}
-				} catch (Exception e) {
-					log.error(
-							"An error occurred while trying to delete subscription for device or its child devices with id: {}",
-							device.getId().getValue());
-					log.error(e.getMessage());
-				}
-
-			}
-
+	public SubscriptionDeletionJob deleteDeviceSubscriptionsBySubscriptionNameForAllDevices(String subscriptionName) {
+		String tenantId = subscriptionsService.getTenant();
+		if (!isTenantMode() && SubscriptionReconciler.isShardOf(MEASUREMENT_SUBSCRIPTION_NAME, subscriptionName)) {
+			/* the known subscriptions are gone, the next full reconcile starts over */
+			subscribedSources.remove(tenantId);
 		}
-		log.info("Deleted device subscriptions process complete...");
-
+		List<String> subscriptionNames = new ArrayList<>();
+		subscriptionNames.add(subscriptionName);
+		if (MEASUREMENT_SUBSCRIPTION_NAME.equals(subscriptionName) && properties.getSubscriptionShards() > 1) {
+			subscriptionNames.addAll(
+					SubscriptionReconciler.shardNames(MEASUREMENT_SUBSCRIPTION_NAME, properties.getSubscriptionShards()));
+		}
+		return subscriptionDeletionService.start(tenantId, subscriptionName, subscriptionNames);
 	}
 
 	public void deleteDeviceSubscriptionsBySubscriptionName(String subscriptionName, String deviceId) {
@@ -387,66 +599,109 @@ public class NotificationDriverService {
 	}
 
 	public List<String> getAllDevices() {
-
-		InventoryFilter inventoryFilter = new InventoryFilter();
-		inventoryFilter.byFragmentType("c8y_IsDevice");
-		ManagedObjectCollection managedObjectsByFilter = inventoryApi.getManagedObjectsByFilter(inventoryFilter);
-		List<ManagedObjectRepresentation> allObjects = Lists.newArrayList(managedObjectsByFilter.get().allPages());
-		for (ManagedObjectRepresentation managedObjectRepresentation : allObjects) {
-			devices.add(managedObjectRepresentation.getId().getValue());
-		}
+		List<String> devices = new ArrayList<>();
+		inventoryScanner.devices().forEachRemaining(device -> devices.add(device.getId()));
 		return devices;
 	}
 
 	public String createToken(String subscription, String subscriber) {
+		return createToken(subscription, subscriber, false);
+	}
+
+	public String createToken(String subscription, String subscriber, boolean shared) {
 		log.info("creating token...");
 		final NotificationTokenRequestRepresentation tokenRequestRepresentation = new NotificationTokenRequestRepresentation(
-				subscriber, subscription, 1440, false);
+				subscriber, subscription, properties.getTokenExpiresInMinutes(), shared);
 
 		return tokenService.create(tokenRequestRepresentation);
 	}
 
 	public void subscribeAllDevices(String tenantId) {
-		InventoryFilter filter = new InventoryFilter();
-		filter.byFragmentType("c8y_IsDevice");
-		// from 1018 onwards the following filter is required since children are not
-		// returned by default
-		QueryParam withChildren = CustomQueryParam.WITH_CHILDREN.setValue("true").toQueryParam();
-		Iterator<ManagedObjectRepresentation> deviceIt = inventoryApi.getManagedObjectsByFilter(filter)
-				.get(2000, withChildren).allPages().iterator();
-		Optional<NotificationSubscriptionRepresentation> notRep = Optional.empty();
-		while (deviceIt.hasNext()) {
-			ManagedObjectRepresentation mor = deviceIt.next();
-			log.info("Found device " + mor.getName());
-
-			notRep = subscribeDevice(tenantId, mor, API.MEASUREMENT);
-
-			if (notRep.isEmpty()) {
-				log.error("Unable to subcribe to the device and child devices for: {}", mor.getId().getValue());
-				continue;
-			}
-
-			log.info("Checking for subdevices for current device...");
-			Iterator<ManagedObjectReferenceRepresentation> childDevices = mor.getChildDevices().iterator();
-			while (childDevices.hasNext()) {
-				ManagedObjectRepresentation childMo = childDevices.next().getManagedObject();
-				subscribeDevice(tenantId, childMo, API.MEASUREMENT);
-
-			}
-
-			break;
+		try {
+			subscriptionsService.runForTenant(tenantId, () -> {
+				try {
+					if (isTenantMode()) {
+						subscriptionReconciler.ensureTenantSubscription(TENANT_MEASUREMENT_SUBSCRIPTION_NAME,
+								API.MEASUREMENT, properties.getSubscriptionTypeFilter());
+						subscribedSources.put(tenantId, subscriptionReconciler.getDeviceIds(tenantId));
+					} else {
+						subscribedSources.put(tenantId, subscriptionReconciler
+								.reconcile(tenantId, MEASUREMENT_SUBSCRIPTION_NAME, properties.getSubscriptionShards(),
+										API.MEASUREMENT)
+								.getSources());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		} catch (Exception e) {
+			/* missing subscriptions are created by the next run, connect anyway */
+			log.error("Unable to reconcile device subscriptions for tenant {}: {}", tenantId, e.getMessage());
 		}
 		log.info("Created subscription for all devices...");
 		log.info("Device Subscription not connected yet. Will connect...");
-		String token = createToken(MEASUREMENT_SUBSCRIPTION_NAME, tenantId + properties.getSubscriber());
 		try {
-			connectAndReceiveNotifications(tenantId, token);
+			connectAndReceiveNotifications(tenantId);
 		} catch (Exception e) {
 			log.error("Error on connecting to Notification Service: {}", e.getLocalizedMessage());
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Subscribes a device and its child devices that were created or attached
+	 * after the full reconcile, e.g. from the tenant managed object stream.
+	 * Devices that are already subscribed are skipped without a platform call.
+	 * In tenant mode the devices are only added to the allowlist. Does nothing
+	 * before the tenant was reconciled.
+	 *
+	 * @throws IllegalStateException if a subscription could not be created, the
+	 *                               notification is then redelivered
+	 */
+	@Override
+	public void onDeviceCreated(String tenantId, String deviceId, List<String> childDeviceIds) {
+		Set<String> sources = subscribedSources.get(tenantId);
+		if (sources == null) {
+			log.debug("Device subscriptions of tenant {} not reconciled yet, ignoring device {}", tenantId, deviceId);
+			return;
+		}
+		if (isTenantMode()) {
+			sources.add(deviceId);
+			sources.addAll(childDeviceIds);
+			return;
+		}
+		subscribeSource(tenantId, deviceId, sources);
+		for (String childId : childDeviceIds) {
+			subscribeSource(tenantId, childId, sources);
+		}
+	}
+
+	/**
+	 * Removes the subscription of a deleted device. Child devices deleted along
+	 * with it arrive as notifications of their own.
+	 */
+	@Override
+	public void onDeviceDeleted(String tenantId, String deviceId) {
+		Set<String> sources = subscribedSources.get(tenantId);
+		if (sources == null || !sources.remove(deviceId) || isTenantMode()) {
+			return;
+		}
+		log.info("Device {} deleted, removing its subscription", deviceId);
+		unsubscribeDevice(tenantId, deviceId, getDeviceSubscriptionName(deviceId));
+	}
+
+	private void subscribeSource(String tenantId, String sourceId, Set<String> sources) {
+		if (!sources.add(sourceId)) {
+			return;
+		}
+		ManagedObjectRepresentation source = new ManagedObjectRepresentation();
+		source.setId(GId.asGId(sourceId));
+		if (subscribeDevice(tenantId, source, API.MEASUREMENT).isEmpty()) {
+			sources.remove(sourceId);
+			throw new IllegalStateException("Unable to subscribe device " + sourceId);
+		}
+	}
+
 	public Optional<NotificationSubscriptionRepresentation> subscribeDevice(String tenantId,
 			ManagedObjectRepresentation mor, API api) {
 		String deviceName = mor.getName();
@@ -459,7 +714,7 @@ public class NotificationDriverService {
 
 	public Optional<NotificationSubscriptionRepresentation> createDeviceSubscription(ManagedObjectRepresentation mor,
 			API api) {
-		final String subscriptionName = MEASUREMENT_SUBSCRIPTION_NAME;
+		final String subscriptionName = getDeviceSubscriptionName(mor.getId().getValue());
 
 		try {
 			Iterator<NotificationSubscriptionRepresentation> subIt = subscriptionApi
@@ -468,7 +723,7 @@ public class NotificationDriverService {
 			NotificationSubscriptionRepresentation notification = null;
 			while (subIt.hasNext()) {
 				notification = subIt.next();
-				if (MEASUREMENT_SUBSCRIPTION_NAME.equals(notification.getSubscription())) {
+				if (subscriptionName.equals(notification.getSubscription())) {
 					log.info("Subscription with ID {} and Source {} already exists.", notification.getId().getValue(),
 							notification.getSource().getId().getValue());
 					return Optional.of(notification);
@@ -508,17 +763,22 @@ public class NotificationDriverService {
 
 		String tenant = event.getTenant();
 		log.info("Microservice unsubscribed for tenant {}", tenant);
-		if (websocketConnections.containsKey(tenant)) {
-			String token = websocketConnections.get(tenant).getToken();
+		startupCoordinator.forget(tenant);
+		if (websocketConnections.contains(tenant)) {
 			try {
 				/*
 				 * To unsubscribe, you can pass any token to the unsubscribe API (even expired
 				 * one's). You can generate a fresh token if needed with the matching subscriber
 				 * and subscription fields and pass that along to unsubscribe API.
 				 */
-				tokenService.unsubcribe(token);
-				websocketConnections.remove(tenant);
-				tenantIdToHostName.remove(tenant);
+				unsubscribeTokens(websocketConnections.get(tenant));
+				removeConnections(tenant);
+				tokenCache.evict(tenant);
+				subscribedSources.remove(tenant);
+				platformUtils.evict(tenant);
+				alarmService.evict(tenant);
+				handlerRegistry.evict(tenant);
+				dispatcher.evict(tenant);
 			} catch (Exception e) {
 				log.error(e.getMessage());
 			}
@@ -546,21 +806,6 @@ public class NotificationDriverService {
 
 	}
 
-	private Optional<Iterator<ManagedObjectRepresentation>> getAllDeviceIterator() {
-		try {
-			InventoryFilter filter = new InventoryFilter();
-			filter.byFragmentType("c8y_IsDevice");
-			QueryParam withChildren = CustomQueryParam.WITH_CHILDREN.setValue("true").toQueryParam();
-			Iterator<ManagedObjectRepresentation> deviceIt = inventoryApi.getManagedObjectsByFilter(filter)
-					.get(2000, withChildren).allPages().iterator();
-			return Optional.of(deviceIt);
-		} catch (Exception e) {
-			log.error("An error occurred while trying to fetch device iterator");
-			log.error(e.getMessage());
-			return Optional.empty();
-		}
-	}
-
 	/**
 	 * 
 	 * @param tenantId
@@ -579,14 +824,16 @@ public class NotificationDriverService {
 	@Deprecated
 	public void disconnect(String tenantId) {
 		log.info("Disconnecting websocket...");
-		JettyWebSocketClient client = websocketConnections.get(tenantId).getWsClient();
-		if (client != null) {
+		for (WebsocketConnection connection : removeConnections(tenantId)) {
+			JettyWebSocketClient client = connection.getWsClient();
+			if (client == null) {
+				continue;
+			}
 			int retryCount = 0;
 			int maxRetries = 3; // set the maximum number of retries here
 			while (retryCount < maxRetries) {
 				try {
 					client.disconnect();
-					websocketConnections.remove(tenantId);
 					log.info("Disconnected successfully!");
 					break; // if successful, exit the loop
 				} catch (Exception e) {
@@ -600,33 +847,46 @@ public class NotificationDriverService {
 				}
 			}
 		}
-		tenantIdToHostName.remove(tenantId);
+		platformUtils.evict(tenantId);
+		alarmService.evict(tenantId);
+		subscribedSources.remove(tenantId);
 
 		log.info("Delete all device subscriptions....");
 
-		Optional<Iterator<ManagedObjectRepresentation>> itOpt = getAllDeviceIterator();
-		if (itOpt.isPresent()) {
-			Iterator<ManagedObjectRepresentation> it = itOpt.get();
-			while (it.hasNext()) {
-				ManagedObjectRepresentation device = it.next();
+		try {
+			subscriptionsService.runForTenant(tenantId, () -> {
 				try {
-					unsubscribeDevice(tenantId, device.getId().getValue(), MEASUREMENT_SUBSCRIPTION_NAME);
-					Iterator<ManagedObjectReferenceRepresentation> childDevices = device.getChildDevices().iterator();
-					while (childDevices.hasNext()) {
-						ManagedObjectRepresentation child = childDevices.next().getManagedObject();
-						unsubscribeDevice(tenantId, child.getId().getValue(), MEASUREMENT_SUBSCRIPTION_NAME);
-					}
-				} catch (Exception e) {
-					log.error(
-							"An error occurred while trying to delete subscription for device or its child devices with id: {}",
-							device.getId().getValue());
-					log.error(e.getMessage());
+					hierarchyWalker.walk(tenantId, deviceId -> {
+						try {
+							unsubscribeDevice(tenantId, deviceId, getDeviceSubscriptionName(deviceId));
+						} catch (Exception e) {
+							log.error("An error occurred while trying to delete subscription for device with id: {}",
+									deviceId);
+							log.error(e.getMessage());
+						}
+					});
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 				}
+			});
+		} catch (Exception e) {
+			log.error("An error occurred while trying to fetch the devices");
+			log.error(e.getMessage());
+		}
+		log.info("Sucessfully deleted all device subscriptions....");
+	}
 
+	/*
+	 * The subscriber is unsubscribed per subscription, one token of each shard is
+	 * enough.
+	 */
+	private void unsubscribeTokens(List<WebsocketConnection> connections) {
+		Set<String> subscriptions = new HashSet<>();
+		for (WebsocketConnection connection : connections) {
+			if (subscriptions.add(connection.getSubscription())) {
+				tokenService.unsubcribe(connection.getToken());
 			}
-
 		}
-		log.info("Sucessfully deleted all device subscriptions....");
 	}
 
 	public List<NotificationSubscriptionRepresentation> getAllSubscriptionsForDevice(String deviceId) {
@@ -649,12 +909,17 @@ public class NotificationDriverService {
 		String tenant = subscriptionsService.getTenant();
 		log.info("Unsubscribe subscriber for tenant: {}", tenant);
 
-		if (websocketConnections.containsKey(tenant)) {
-			String token = websocketConnections.get(tenant).getToken();
+		if (websocketConnections.contains(tenant)) {
 			try {
-				tokenService.unsubcribe(token);
-				websocketConnections.remove(tenant);
-				tenantIdToHostName.remove(tenant);
+				unsubscribeTokens(websocketConnections.get(tenant));
+				removeConnections(tenant);
+				tokenCache.evict(tenant);
+				startupCoordinator.forget(tenant);
+				subscribedSources.remove(tenant);
+				platformUtils.evict(tenant);
+				alarmService.evict(tenant);
+				handlerRegistry.evict(tenant);
+				dispatcher.evict(tenant);
 			} catch (Exception e) {
 				throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
 			}
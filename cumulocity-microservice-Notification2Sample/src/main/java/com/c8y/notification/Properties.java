@@ -1,8 +1,14 @@
 package com.c8y.notification;
 
+import java.util.List;
+import java.util.Map;
+
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.c8y.notification.model.SubscriptionMode;
+import com.c8y.notification.websocket.NotificationDispatcher.BackpressurePolicy;
+
 import lombok.Data;
 
 @Component
@@ -23,4 +29,144 @@ public class Properties {
 
 	@Value("${C8Y.bootstrap.tenant}")
 	private String tenantId;
+
+	/* notifications a single tenant may queue per lane */
+	@Value("${notification.dispatcher.tenantQueueCapacity:256}")
+	private int dispatcherTenantQueueCapacity;
+
+	/* one worker per lane, notification.dispatcher.workers is the former name */
+	@Value("${notification.dispatcher.lanes:${notification.dispatcher.workers:4}}")
+	private int dispatcherLanes;
+
+	/* lane count per API name, e.g. {MEASUREMENT:8,INVENTORY:1} */
+	@Value("#{${notification.dispatcher.apiLanes:{:}}}")
+	private Map<String, Integer> dispatcherApiLanes;
+
+	/* share of the lane workers per tenant id, e.g. {t12345:4}, default 1 */
+	@Value("#{${notification.dispatcher.tenantWeights:{:}}}")
+	private Map<String, Integer> dispatcherTenantWeights;
+
+	@Value("${notification.dispatcher.backpressure:BLOCK}")
+	private BackpressurePolicy dispatcherBackpressure;
+
+	@Value("${notification.ack.batchSize:100}")
+	private int ackBatchSize;
+
+	@Value("${notification.ack.flushIntervalMillis:100}")
+	private long ackFlushIntervalMillis;
+
+	@Value("${notification.websocket.selectors:1}")
+	private int webSocketSelectors;
+
+	@Value("${notification.websocket.maxThreads:16}")
+	private int webSocketMaxThreads;
+
+	@Value("${notification.websocket.schedulerThreads:1}")
+	private int webSocketSchedulerThreads;
+
+	@Value("${notification.websocket.streaming:false}")
+	private boolean webSocketStreaming;
+
+	@Value("${notification.consumers.perTenant:1}")
+	private int consumersPerTenant;
+
+	@Value("${notification.consumers.shared:false}")
+	private boolean sharedConsumers;
+
+	@Value("${notification.reconnect.initialDelaySeconds:5}")
+	private long reconnectInitialDelaySeconds;
+
+	@Value("${notification.reconnect.conflictDelaySeconds:60}")
+	private long reconnectConflictDelaySeconds;
+
+	@Value("${notification.reconnect.maxDelaySeconds:300}")
+	private long reconnectMaxDelaySeconds;
+
+	@Value("${notification.reconnect.maxConcurrent:4}")
+	private int reconnectMaxConcurrent;
+
+	@Value("${notification.token.expiresInMinutes:1440}")
+	private int tokenExpiresInMinutes;
+
+	@Value("${notification.token.refreshBeforeMinutes:60}")
+	private int tokenRefreshBeforeMinutes;
+
+	@Value("${notification.dedup.enabled:false}")
+	private boolean dedupEnabled;
+
+	@Value("${notification.dedup.windowSeconds:600}")
+	private long dedupWindowSeconds;
+
+	@Value("${notification.dedup.capacity:262144}")
+	private int dedupCapacity;
+
+	@Value("${notification.spool.enabled:false}")
+	private boolean spoolEnabled;
+
+	@Value("${notification.spool.directory:${java.io.tmpdir}/notification-spool}")
+	private String spoolDirectory;
+
+	@Value("${notification.spool.segmentSizeMB:64}")
+	private int spoolSegmentSizeMB;
+
+	@Value("${notification.spool.syncIntervalMillis:50}")
+	private long spoolSyncIntervalMillis;
+
+	@Value("${notification.spool.retentionMinutes:60}")
+	private long spoolRetentionMinutes;
+
+	@Value("${notification.spool.maxInFlight:10000}")
+	private int spoolMaxInFlight;
+
+	@Value("${notification.spool.retryDelaySeconds:5}")
+	private long spoolRetryDelaySeconds;
+
+	@Value("${notification.spool.maxRetries:10}")
+	private int spoolMaxRetries;
+
+	@Value("${notification.inventory.pageSize:2000}")
+	private int inventoryPageSize;
+
+	@Value("${notification.hierarchy.parallelism:8}")
+	private int hierarchyParallelism;
+
+	@Value("${notification.reconcile.parallelism:8}")
+	private int reconcileParallelism;
+
+	@Value("${notification.delete.parallelism:8}")
+	private int deleteParallelism;
+
+	/* device mode only, the devices are spread over this many subscriptions */
+	@Value("${notification.subscription.shards:1}")
+	private int subscriptionShards;
+
+	@Value("${notification.subscription.mode:DEVICE}")
+	private SubscriptionMode subscriptionMode;
+
+	/* tenant mode only, e.g. c8y_Temperature, empty for all types */
+	@Value("${notification.subscription.typeFilter:}")
+	private String subscriptionTypeFilter;
+
+	@Value("${notification.startup.concurrency:4}")
+	private int startupConcurrency;
+
+	/* minimum time between the start of two tenant initializations */
+	@Value("${notification.startup.staggerMillis:100}")
+	private long startupStaggerMillis;
+
+	/* comma separated tenant ids that are initialized first */
+	@Value("${notification.startup.priorityTenants:}")
+	private List<String> startupPriorityTenants;
+
+	/* subscribe the devices and connect when a tenant subscribes the microservice */
+	@Value("${notification.startup.connect:false}")
+	private boolean startupConnect;
+
+	/* host, application id and application managed object id per tenant */
+	@Value("${notification.platform.cacheTtlMinutes:60}")
+	private long platformCacheTtlMinutes;
+
+	/* disconnect alarms are updated once the connection state is stable this long */
+	@Value("${notification.alarm.debounceSeconds:10}")
+	private long alarmDebounceSeconds;
 }
@@ -1,13 +1,12 @@
 package com.c8y.notification;
 
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.websocket.api.UpgradeException;
 import org.slf4j.Logger;
@@ -16,12 +15,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
+import com.c8y.notification.handler.NotificationHandlerRegistry;
 import com.c8y.notification.model.ConnectionStatus;
 import com.c8y.notification.model.WebsocketConnection;
+import com.c8y.notification.platform.TokenCache;
 import com.c8y.notification.platform.TokenService;
+import com.c8y.notification.util.PlatformUtils;
 import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.ConnectionRegistry;
 import com.c8y.notification.websocket.NotificationCallback;
+import com.c8y.notification.websocket.NotificationDispatcher;
+import com.c8y.notification.websocket.ReconnectScheduler;
+import com.c8y.notification.websocket.ReconnectScheduler.Cause;
+import com.c8y.notification.websocket.jetty.AckWriter;
 import com.c8y.notification.websocket.jetty.JettyWebSocketClient;
+import com.c8y.notification.websocket.jetty.JettyWebSocketResources;
 import com.cumulocity.microservice.subscription.model.MicroserviceSubscriptionRemovedEvent;
 import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
 import com.cumulocity.rest.representation.reliable.notification.NotificationSubscriptionFilterRepresentation;
@@ -29,6 +37,8 @@ import com.cumulocity.rest.representation.reliable.notification.NotificationSubs
 import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionApi;
 import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionFilter;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 /**
  * 
  * @author ARSI
@@ -44,10 +54,11 @@ public class TenantMOSubscriber {
 	private static final Logger logger = LoggerFactory.getLogger(TenantMOSubscriber.class);
 	private static final String TENANT_SUBSCRIBER = "TenantSubscriber";
 	private static final String TENANT_SUBSCRIPTION = "TenantSubscriptionName";
-	private HashMap<String, WebsocketConnection> websocketConnections = new HashMap<>();
+	// tenantid - the single tenant-context connection
+	private final ConnectionRegistry websocketConnections = new ConnectionRegistry();
 	private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
 
-	private boolean reconnectFlag = true;
+	private final AtomicBoolean reconnectFlag = new AtomicBoolean(true);
 
 	@Autowired
 	private Properties properties;
@@ -59,11 +70,33 @@ public class TenantMOSubscriber {
 	private MicroserviceSubscriptionsService subscriptionsService;
 
 	@Autowired
-	private NotificationDriverService notificationDriverService;
+	private PlatformUtils platformUtils;
 
 	@Autowired
 	private NotificationSubscriptionApi subscriptionApi;
 
+	@Autowired
+	private NotificationDispatcher dispatcher;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private JettyWebSocketResources webSocketResources;
+
+	@Autowired
+	private ReconnectScheduler reconnectScheduler;
+
+	@Autowired
+	private TokenCache tokenCache;
+
+	@Autowired
+	private NotificationHandlerRegistry handlerRegistry;
+
+	/*
+	 * Opened by NotificationDriverService once the device subscriptions of the
+	 * tenant are reconciled, within the tenant context.
+	 */
 	public void initTenantClient(String tenantId) {
 		// Subscribe on Tenant do get informed when devices get
 
@@ -77,61 +110,73 @@ public class TenantMOSubscriber {
 	private void subscribeTenant(String tenantId) {
 		logger.info("Creating new Subscription for Tenant " + tenantId);
 		NotificationSubscriptionRepresentation notification = createTenantSubscription();
-		String tenantToken = notificationDriverService.createToken(notification.getSubscription(), TENANT_SUBSCRIBER);
+		String tenantToken = tokenCache.get(tenantId, TENANT_SUBSCRIPTION, TENANT_SUBSCRIBER, false);
 
-		// call websocket reconnect every 30 seconds if the connection is disconnected.
+		// check the connections every 30 seconds in case a disconnect was missed.
 
-		try {
-			connect(tenantId, tenantToken);
-		} catch (URISyntaxException e) {
-			e.printStackTrace();
+		WebsocketConnection con = new WebsocketConnection(null, ConnectionStatus.INITIALIZING, tenantToken);
+		if (websocketConnections.register(tenantId, List.of(con))) {
+			connect(tenantId, con);
+		} else {
+			logger.info("Tenant {} is already connected", tenantId);
 		}
 
-		if (reconnectFlag) {
+		if (reconnectFlag.compareAndSet(true, false)) {
 			executorService.scheduleAtFixedRate(() -> {
-				reconnect();
+				checkConnections();
 			}, 30, 30, TimeUnit.SECONDS);
-			this.reconnectFlag = false;
 		}
 
 	}
 
-	private void connect(String tenantId, String token) throws URISyntaxException {
+	/*
+	 * Opens the socket of the registered connection, the first time and on every
+	 * reconnect.
+	 */
+	private void connect(String tenantId, WebsocketConnection con) {
 		try {
-
+			final int generation = con.getGeneration();
 			NotificationCallback tenantCallback = new NotificationCallback() {
 
 				@Override
 				public void onOpen(String tenantId, URI serverUri) {
 					logger.info("Connected to Cumulocity notification service over WebSocket " + serverUri);
-					websocketConnections.get(tenantId).setConnectionStatus(ConnectionStatus.CONNECTED);
+					if (!con.connected()) {
+						closeIfRemoved(con);
+						return;
+					}
+					reconnectScheduler.succeeded(reconnectKey(tenantId));
 				}
 
 				@Override
 				public void onNotification(String tenantId, Notification notification) {
-					// TODO Auto-generated method stub
-
+					// managed object notifications, see InventoryNotificationHandler
+					handlerRegistry.handle(tenantId, TENANT_SUBSCRIPTION, TENANT_SUBSCRIPTION, notification);
 				}
 
 				@Override
 				public void onError(String tenantId, Throwable t) {
-					if (t instanceof UpgradeException) {
-						if (t.getMessage().contains("Unexpected HTTP Response Status Code: 409 Conflict")) {
+					if (t instanceof UpgradeException && con.disconnected(generation)) {
+						Cause cause = ReconnectScheduler.causeOf(t);
+						if (cause == Cause.CONFLICT) {
 							logger.warn(
 									"The websocket connection was not successful. Wait till the platfrom clears previous websocket state...");
-							websocketConnections.get(tenantId).setConnectionStatus(ConnectionStatus.DISCONNECTED);
+						} else {
+							tokenCache.invalidate(tenantId, TENANT_SUBSCRIPTION, TENANT_SUBSCRIBER, false);
 						}
+						scheduleReconnect(tenantId, cause);
 					}
 				}
 
 				@Override
 				public void onClose(String tenantId) {
-					websocketConnections.get(tenantId).setConnectionStatus(ConnectionStatus.DISCONNECTED);
-
+					if (con.disconnected(generation)) {
+						scheduleReconnect(tenantId, Cause.FAILURE);
+					}
 				}
 			};
 
-			URI webSocketUrl = notificationDriverService.getWebSocketUrl(token, tenantId);
+			URI webSocketUrl = platformUtils.getWebSocketUrl(con.getToken(), tenantId);
 
 			final String webSocketLibrary = properties.getWebSocketLibrary();
 			if (webSocketLibrary != null && webSocketLibrary.equalsIgnoreCase("jetty")) {
@@ -140,13 +185,19 @@ public class TenantMOSubscriber {
 					logger.info("Initiate websocket connect...");
 					logger.info("TENANT SCOPE CONNECTION... ");
 
-					JettyWebSocketClient client = new JettyWebSocketClient(webSocketUrl, tenantCallback, tenantId)
-							.connect();
-					WebsocketConnection con = new WebsocketConnection(client, ConnectionStatus.INITIALIZING, token);
-					websocketConnections.put(tenantId, con);
+					JettyWebSocketClient client = new JettyWebSocketClient(webSocketUrl, tenantCallback, dispatcher,
+							new AckWriter(tenantId, TENANT_SUBSCRIPTION, properties.getAckBatchSize(),
+									properties.getAckFlushIntervalMillis(), meterRegistry),
+							webSocketResources, tenantId, TENANT_SUBSCRIPTION, TENANT_SUBSCRIPTION);
+					con.setWsClient(client);
+					client.connect();
+					closeIfRemoved(con);
 				} catch (Exception e) {
 					e.printStackTrace();
 					logger.info("Websocket connection failed....");
+					if (con.disconnected(generation)) {
+						scheduleReconnect(tenantId, Cause.FAILURE);
+					}
 				}
 
 			} else {
@@ -185,60 +236,102 @@ public class TenantMOSubscriber {
 		return notification;
 	}
 
-	private void reconnect() {
-
-		JettyWebSocketClient wsClient;
-		for (String tenant : websocketConnections.keySet()) {
-			WebsocketConnection connection = websocketConnections.get(tenant);
-			wsClient = connection.getWsClient();
-			if (wsClient != null) {
-				if (wsClient.getClient().isFailed() || wsClient.getClient().isStopped()
-						|| wsClient.getClient().isStopping()
-						|| connection.getConnectionStatus().equals(ConnectionStatus.DISCONNECTED)) {
-					logger.info("Current websocket state:" + wsClient.getClient().getState());
-					logger.info("Disconnect detected for tenant: {} Reconnecting....", tenant);
-
-					try {
-						String token = subscriptionsService.callForTenant(tenant, () -> {
-							return notificationDriverService.createToken(TENANT_SUBSCRIPTION, TENANT_SUBSCRIBER);
-						});
-						try {
-							/*
-							 * An immediate reconnect might result in connection conflict on the server
-							 * side. The server maintains the state of the websocket connection. upon
-							 * disconnect, it might take up to 5 minutes till this state is cleared. The
-							 * reconnect logic should keep trying till successful
-							 */
-							logger.info("Wait 120 seconds before reconnect...");
-							Thread.sleep(120000);
-						} catch (InterruptedException ex) {
-							Thread.currentThread().interrupt();
-						}
-						logger.info("New token created...");
-						connection.setConnectionStatus(ConnectionStatus.RECONNECTING);
-						connect(tenant, token);
-
-					} catch (Exception e) {
-						logger.error("Error occured in notification service: {}", e.getLocalizedMessage());
-						logger.info(
-								"If websocket disconnect is detected, reconnect will be initiated after 30 seconds");
-					}
+	/*
+	 * Safety net for missed disconnects, reconnects are normally scheduled from
+	 * onClose/onError. Scheduling the same tenant twice has no effect.
+	 */
+	private void checkConnections() {
+		for (String tenant : websocketConnections.getTenants()) {
+			for (WebsocketConnection connection : websocketConnections.get(tenant)) {
+				JettyWebSocketClient wsClient = connection.getWsClient();
+				if (wsClient != null && wsClient.isFailed()
+						&& connection.getConnectionStatus() == ConnectionStatus.CONNECTED) {
+					connection.disconnected();
+				}
+				if (wsClient != null && connection.getConnectionStatus() == ConnectionStatus.DISCONNECTED) {
+					logger.info("Disconnect detected for tenant: {}", tenant);
+					scheduleReconnect(tenant, Cause.FAILURE);
 				}
 			}
 		}
 	}
 
+	/*
+	 * An immediate reconnect might result in connection conflict on the server
+	 * side. The server maintains the state of the websocket connection. upon
+	 * disconnect, it might take up to 5 minutes till this state is cleared. The
+	 * reconnect scheduler backs off and keeps trying till successful.
+	 */
+	private void scheduleReconnect(String tenantId, Cause cause) {
+		reconnectScheduler.schedule(reconnectKey(tenantId), cause, () -> reconnect(tenantId));
+	}
+
+	private String reconnectKey(String tenantId) {
+		return TENANT_SUBSCRIPTION + "/" + tenantId;
+	}
+
+	/*
+	 * Same state machine as the device connections: only the caller that moves the
+	 * connection from DISCONNECTED to RECONNECTING opens a new socket.
+	 */
+	private void reconnect(String tenant) throws Exception {
+		List<WebsocketConnection> connections = websocketConnections.get(tenant);
+		if (connections.isEmpty() || !websocketConnections.isActive(tenant, connections.get(0))) {
+			logger.info("Tenant {} is no longer subscribed, reconnect skipped", tenant);
+			return;
+		}
+		WebsocketConnection connection = connections.get(0);
+		if (!connection.transition(ConnectionStatus.DISCONNECTED, ConnectionStatus.RECONNECTING)) {
+			logger.debug("Connection of tenant {} is {}, reconnect skipped", tenant, connection.getConnectionStatus());
+			return;
+		}
+		/* the close of the old socket must not disconnect the new one */
+		connection.nextGeneration();
+		logger.info("Reconnecting tenant: {}....", tenant);
+		String token;
+		try {
+			token = subscriptionsService.callForTenant(tenant, () -> {
+				return tokenCache.get(tenant, TENANT_SUBSCRIPTION, TENANT_SUBSCRIBER, false);
+			});
+		} catch (RuntimeException e) {
+			connection.transition(ConnectionStatus.RECONNECTING, ConnectionStatus.DISCONNECTED);
+			throw e;
+		}
+		if (connection.getWsClient() != null) {
+			connection.getWsClient().disconnect();
+		}
+		connection.setToken(token);
+		connect(tenant, connection);
+	}
+
+	/*
+	 * A connection that was removed while its socket was opening is closed again.
+	 */
+	private void closeIfRemoved(WebsocketConnection connection) {
+		JettyWebSocketClient wsClient = connection.getWsClient();
+		if (connection.isClosed() && wsClient != null) {
+			logger.info("Connection was removed while connecting, disconnecting");
+			try {
+				wsClient.disconnect();
+			} catch (Exception e) {
+				logger.error("Unable to disconnect removed websocket: {}", e.getMessage());
+			}
+		}
+	}
+
 	@EventListener
 	public void destroy(MicroserviceSubscriptionRemovedEvent event) {
 		// disconnect(event.getTenant());
 
 		String tenant = event.getTenant();
 		logger.info("Microservice unsubscribed for tenant {}", tenant);
-		if (websocketConnections.containsKey(tenant)) {
-			String token = websocketConnections.get(tenant).getToken();
+		if (websocketConnections.contains(tenant)) {
+			String token = websocketConnections.get(tenant).get(0).getToken();
 			try {
 				tokenService.unsubcribe(token);
 				websocketConnections.remove(tenant);
+				reconnectScheduler.cancel(reconnectKey(tenant));
+				tokenCache.evict(tenant);
 			} catch (Exception e) {
 				logger.error(e.getMessage());
 			}
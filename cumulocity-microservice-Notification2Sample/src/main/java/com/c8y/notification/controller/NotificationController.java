@@ -10,13 +10,17 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.c8y.notification.NotificationDriverService;
+import com.c8y.notification.model.SubscriptionDeletionJob;
 import com.c8y.notification.service.ExampleService;
+import com.c8y.notification.service.SubscriptionDeletionService;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
 import com.cumulocity.rest.representation.reliable.notification.NotificationSubscriptionRepresentation;
 
 /**
@@ -32,12 +36,17 @@ public class NotificationController {
 
 	private ExampleService deviceService;
 	private NotificationDriverService nds;
+	private SubscriptionDeletionService deletionService;
+	private MicroserviceSubscriptionsService subscriptionsService;
 	private static final Logger LOG = LoggerFactory.getLogger(NotificationController.class);
 
 	@Autowired
-	public NotificationController(ExampleService deviceService, NotificationDriverService notifictionDriverService) {
+	public NotificationController(ExampleService deviceService, NotificationDriverService notifictionDriverService,
+			SubscriptionDeletionService deletionService, MicroserviceSubscriptionsService subscriptionsService) {
 		this.deviceService = deviceService;
 		this.nds = notifictionDriverService;
+		this.deletionService = deletionService;
+		this.subscriptionsService = subscriptionsService;
 	}
 
 	/**
@@ -65,13 +74,23 @@ public class NotificationController {
 
 	/**
 	 * Delete all subscriptions for a given name for all devices. Can be used when
-	 * subscription is made for all devices for a given subscription name
+	 * subscription is made for all devices for a given subscription name. The
+	 * deletion runs in the background, the response is the job to poll.
 	 */
-	@DeleteMapping(value = "/devices/subscriptions")
-	public ResponseEntity<?> deleteAllSubscriptions(@RequestParam String subscriptionName) {
-		nds.deleteDeviceSubscriptionsBySubscriptionNameForAllDevices(subscriptionName);
-		// TODO handle response
-		return new ResponseEntity<>(HttpStatus.OK);
+	@DeleteMapping(value = "/devices/subscriptions", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<SubscriptionDeletionJob> deleteAllSubscriptions(@RequestParam String subscriptionName) {
+		SubscriptionDeletionJob job = nds.deleteDeviceSubscriptionsBySubscriptionNameForAllDevices(subscriptionName);
+		return new ResponseEntity<SubscriptionDeletionJob>(job, HttpStatus.ACCEPTED);
+	}
+
+	/**
+	 * Progress of a deletion started with DELETE /devices/subscriptions
+	 */
+	@GetMapping(path = "/devices/subscriptions/jobs/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<SubscriptionDeletionJob> getDeletionJob(@PathVariable String jobId) {
+		return deletionService.getJob(subscriptionsService.getTenant(), jobId)
+				.map(job -> new ResponseEntity<SubscriptionDeletionJob>(job, HttpStatus.OK))
+				.orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
 	}
 
 	/**
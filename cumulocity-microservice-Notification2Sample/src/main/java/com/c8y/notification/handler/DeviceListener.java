@@ -0,0 +1,20 @@
+package com.c8y.notification.handler;
+
+import java.util.List;
+
+/**
+ * Told about devices created or deleted in the inventory, see
+ * {@link InventoryNotificationHandler}. The listener registers itself with the
+ * handler, so the handler does not depend on the service that subscribes the
+ * devices.
+ */
+public interface DeviceListener {
+
+	/**
+	 * @throws IllegalStateException if the device could not be subscribed, the
+	 *                               notification is then redelivered
+	 */
+	void onDeviceCreated(String tenantId, String deviceId, List<String> childDeviceIds);
+
+	void onDeviceDeleted(String tenantId, String deviceId);
+}
@@ -0,0 +1,101 @@
+package com.c8y.notification.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.model.API;
+import com.c8y.notification.websocket.Notification;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Handler for managed object notifications of the tenant subscription. Managed
+ * objects have no fixed structure, they are decoded into a tree.
+ *
+ * Created devices and child devices attached to a device are subscribed right
+ * away, deleted devices are unsubscribed. A full inventory scan is only needed
+ * on startup. The {@link DeviceListener} is registered by the
+ * NotificationDriverService, until then inventory notifications are ignored.
+ */
+@Component
+@Slf4j
+public class InventoryNotificationHandler implements NotificationHandler<JsonNode> {
+
+	private static final String DEVICE_FRAGMENT = "c8y_IsDevice";
+
+	private final ObjectReader reader = new ObjectMapper().reader();
+
+	private volatile DeviceListener deviceListener;
+
+	public void setDeviceListener(DeviceListener deviceListener) {
+		this.deviceListener = deviceListener;
+	}
+
+	@Override
+	public API getApi() {
+		return API.INVENTORY;
+	}
+
+	@Override
+	public JsonNode decode(Notification notification) throws IOException {
+		try (JsonParser parser = notification.getBodyParser(reader)) {
+			// e.g. DELETE notifications may come without body
+			if (parser.nextToken() == null) {
+				return MissingNode.getInstance();
+			}
+			return reader.readTree(parser);
+		}
+	}
+
+	@Override
+	public void handle(String tenantId, Notification notification, JsonNode managedObject) {
+		String action = notification.getNotificationHeaderCount() > 1 ? notification.getNotificationHeader(1).toString()
+				: "";
+		if (log.isDebugEnabled()) {
+			log.debug("Managed object {} {} for tenant {}", managedObject.path("id").asText(), action, tenantId);
+		}
+		DeviceListener listener = deviceListener;
+		if (listener == null) {
+			return;
+		}
+		switch (action) {
+		case "CREATE":
+		case "UPDATE":
+			/* an update is how a child device gets attached to its parent */
+			if (managedObject.has(DEVICE_FRAGMENT)) {
+				listener.onDeviceCreated(tenantId, managedObject.path("id").asText(),
+						getChildDeviceIds(managedObject));
+			}
+			break;
+		case "DELETE":
+			/* the body may be missing, the id is also the last segment of the path */
+			CharSequence sourceId = notification.getSourceId();
+			String id = sourceId != null ? sourceId.toString() : managedObject.path("id").asText();
+			if (!id.isEmpty()) {
+				listener.onDeviceDeleted(tenantId, id);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private List<String> getChildDeviceIds(JsonNode managedObject) {
+		List<String> ids = new ArrayList<>();
+		for (JsonNode reference : managedObject.path("childDevices").path("references")) {
+			String id = reference.path("managedObject").path("id").asText();
+			if (!id.isEmpty()) {
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+}
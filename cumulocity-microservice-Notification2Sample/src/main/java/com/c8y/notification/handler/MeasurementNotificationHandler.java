@@ -0,0 +1,50 @@
+package com.c8y.notification.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.model.API;
+import com.c8y.notification.model.MeasurementValue;
+import com.c8y.notification.util.MeasurementDecoder;
+import com.c8y.notification.websocket.Notification;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Example handler for measurement notifications, the measurement is decoded
+ * into flat values. Call your service here to handle them.
+ */
+@Component
+@Slf4j
+public class MeasurementNotificationHandler implements NotificationHandler<List<MeasurementValue>> {
+
+	private final ObjectReader reader = new ObjectMapper().reader();
+	private final MeasurementDecoder decoder = new MeasurementDecoder();
+
+	@Override
+	public API getApi() {
+		return API.MEASUREMENT;
+	}
+
+	@Override
+	public List<MeasurementValue> decode(Notification notification) throws IOException {
+		List<MeasurementValue> values = new ArrayList<>(4);
+		try (JsonParser parser = notification.getBodyParser(reader)) {
+			decoder.decode(parser, values::add);
+		}
+		return values;
+	}
+
+	@Override
+	public void handle(String tenantId, Notification notification, List<MeasurementValue> values) {
+		if (log.isDebugEnabled()) {
+			log.debug("Measurement values received for tenant {}: {}", tenantId, values);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.c8y.notification.handler;
+
+import java.io.IOException;
+
+import com.c8y.notification.model.API;
+import com.c8y.notification.websocket.Notification;
+
+/**
+ * Handles the notifications of one {@link API}. Register an implementation as
+ * Spring bean, the {@link NotificationHandlerRegistry} routes every
+ * notification by the api segment of its subscription path, the body is only
+ * decoded by the handler that is responsible for it.
+ *
+ * Handlers are called on the dispatcher lanes of their API, see
+ * {@link com.c8y.notification.websocket.NotificationDispatcher}. The
+ * notification is acknowledged if neither decode nor handle throws.
+ *
+ * @param <T> the decoded body
+ */
+public interface NotificationHandler<T> {
+
+	API getApi();
+
+	T decode(Notification notification) throws IOException;
+
+	void handle(String tenantId, Notification notification, T payload) throws Exception;
+}
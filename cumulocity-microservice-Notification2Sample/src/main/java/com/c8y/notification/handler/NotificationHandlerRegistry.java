@@ -0,0 +1,148 @@
+package com.c8y.notification.handler;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.model.API;
+import com.c8y.notification.platform.SubscribedSources;
+import com.c8y.notification.service.TenantStartupCoordinator;
+import com.c8y.notification.websocket.Notification;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * All {@link NotificationHandler} beans keyed by their {@link API}.
+ *
+ * Notifications of an API without handler are only logged and acknowledged.
+ * In tenant mode measurements of sources that are not on the allowlist are
+ * dropped here, see {@link SubscribedSources}.
+ *
+ * Every notification of a consumer passes {@link #handle(String, String,
+ * String, Notification)}, whether it comes from the websocket or is replayed
+ * from the spool, so both are counted and filtered the same way.
+ */
+@Component
+@Slf4j
+public class NotificationHandlerRegistry {
+
+	private static final String RECEIVED_METRIC = "notification.consumer.received";
+	private static final String FILTERED_METRIC = "notification.consumer.filtered";
+
+	private final Map<API, NotificationHandler<?>> handlers = new EnumMap<>(API.class);
+	private final SubscribedSources subscribedSources;
+	private final TenantStartupCoordinator startupCoordinator;
+	private final MeterRegistry meterRegistry;
+	// tenantid/subscription/consumer - counters
+	private final Map<String, ConsumerMeters> consumerMeters = new ConcurrentHashMap<>();
+
+	@Autowired
+	public NotificationHandlerRegistry(List<NotificationHandler<?>> handlers, SubscribedSources subscribedSources,
+			TenantStartupCoordinator startupCoordinator, MeterRegistry meterRegistry) {
+		this.subscribedSources = subscribedSources;
+		this.startupCoordinator = startupCoordinator;
+		this.meterRegistry = meterRegistry;
+		for (NotificationHandler<?> handler : handlers) {
+			NotificationHandler<?> previous = this.handlers.put(handler.getApi(), handler);
+			if (previous != null) {
+				throw new IllegalStateException("Two notification handlers for " + handler.getApi() + ": "
+						+ previous.getClass().getName() + " and " + handler.getClass().getName());
+			}
+			log.info("Registered {} for {} notifications", handler.getClass().getSimpleName(), handler.getApi());
+		}
+	}
+
+	/**
+	 * Decode and handle a notification a consumer received. A body that can not
+	 * be decoded is logged and acknowledged, redelivering it would not help. A
+	 * failing handler is rethrown, the notification is then not acknowledged and
+	 * redelivered. Notifications of sources that are not on the allowlist are
+	 * acknowledged without being handled.
+	 *
+	 * @param subscription name of the subscription
+	 * @param consumer     name of the consumer, the subscription name for
+	 *                     non-shared tokens
+	 */
+	public void handle(String tenantId, String subscription, String consumer, Notification notification) {
+		ConsumerMeters meters = metersOf(tenantId, subscription, consumer);
+		if (!subscribedSources.isAllowed(tenantId, notification)) {
+			meters.filtered.increment();
+			return;
+		}
+		meters.received.increment();
+		startupCoordinator.onNotification(tenantId);
+		API api = API.fromNotificationApi(notification.getApi());
+		NotificationHandler<?> handler = handlers.get(api);
+		if (handler == null) {
+			log.debug("No handler for {} notification {}, acknowledging", api, notification.getNotificationHeaders());
+			return;
+		}
+		handle(handler, tenantId, notification);
+	}
+
+	/*
+	 * Tenant unsubscribed, drop its counters.
+	 */
+	public void evict(String tenantId) {
+		consumerMeters.values().removeIf(meters -> {
+			if (!meters.tenantId.equals(tenantId)) {
+				return false;
+			}
+			meterRegistry.remove(meters.received);
+			meterRegistry.remove(meters.filtered);
+			return true;
+		});
+	}
+
+	public boolean hasHandler(API api) {
+		return handlers.containsKey(api);
+	}
+
+	private ConsumerMeters metersOf(String tenantId, String subscription, String consumer) {
+		return consumerMeters.computeIfAbsent(tenantId + "/" + subscription + "/" + consumer,
+				key -> new ConsumerMeters(tenantId,
+						Counter.builder(RECEIVED_METRIC).description("Notifications processed per consumer")
+								.tag("tenant", tenantId).tag("subscription", subscription).tag("consumer", consumer)
+								.register(meterRegistry),
+						Counter.builder(FILTERED_METRIC).description("Notifications of devices not on the allowlist")
+								.tag("tenant", tenantId).tag("subscription", subscription).tag("consumer", consumer)
+								.register(meterRegistry)));
+	}
+
+	private <T> void handle(NotificationHandler<T> handler, String tenantId, Notification notification) {
+		T payload;
+		try {
+			payload = handler.decode(notification);
+		} catch (IOException e) {
+			log.error("Unable to decode {} notification {} for tenant {}: {}", handler.getApi(),
+					notification.getNotificationHeaders(), tenantId, e.getMessage());
+			return;
+		}
+		try {
+			handler.handle(tenantId, notification, payload);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(handler.getClass().getSimpleName() + " failed: " + e.getMessage(), e);
+		}
+	}
+
+	private static class ConsumerMeters {
+		private final String tenantId;
+		private final Counter received;
+		private final Counter filtered;
+
+		private ConsumerMeters(String tenantId, Counter received, Counter filtered) {
+			this.tenantId = tenantId;
+			this.received = received;
+			this.filtered = filtered;
+		}
+	}
+}
@@ -30,6 +30,8 @@ public enum API {
 
     static final private Map<String, API> ALIAS_MAP = new HashMap<String, API>();
 
+    static final private API[] NOTIFICATION_APIS = { ALARM, EVENT, MEASUREMENT, INVENTORY, OPERATION };
+
     static {
         for (API api : API.values()) {
             ALIAS_MAP.put(api.name(), api);
@@ -38,6 +40,30 @@ public enum API {
         }
     }
 
+    /*
+     * The API of a notification from the api segment of its subscription path,
+     * e.g. "measurements" or "managedobjects". EMPTY if unknown.
+     */
+    static public API fromNotificationApi(CharSequence value) {
+        if (value == null)
+            return EMPTY;
+        for (API api : NOTIFICATION_APIS) {
+            if (equalsIgnoreCase(api.notificationFilter, value))
+                return api;
+        }
+        return EMPTY;
+    }
+
+    static private boolean equalsIgnoreCase(String expected, CharSequence value) {
+        if (expected.length() != value.length())
+            return false;
+        for (int i = 0; i < expected.length(); i++) {
+            if (Character.toLowerCase(expected.charAt(i)) != Character.toLowerCase(value.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
     static public API fromString(String value) {
         API api = ALIAS_MAP.get(value);
         if (api == null)
@@ -2,6 +2,8 @@ package com.c8y.notification.model;
 
 public enum ConnectionStatus {
 
-	INITIALIZING, CONNECTED, DISCONNECTED, RECONNECTING
+	INITIALIZING, CONNECTED, DISCONNECTED, RECONNECTING,
+	/* removed from the registry, final */
+	CLOSED
 
 }
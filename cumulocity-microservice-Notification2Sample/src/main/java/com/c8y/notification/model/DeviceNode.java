@@ -0,0 +1,32 @@
+package com.c8y.notification.model;
+
+import java.util.List;
+
+/*
+ * What a device scan keeps of a managed object: the id, the name and the ids of
+ * the direct child devices.
+ */
+public class DeviceNode {
+
+	private final String id;
+	private final String name;
+	private final List<String> childDeviceIds;
+
+	public DeviceNode(String id, String name, List<String> childDeviceIds) {
+		this.id = id;
+		this.name = name;
+		this.childDeviceIds = childDeviceIds;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<String> getChildDeviceIds() {
+		return childDeviceIds;
+	}
+}
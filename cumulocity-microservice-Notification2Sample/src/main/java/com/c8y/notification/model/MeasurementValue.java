@@ -0,0 +1,56 @@
+package com.c8y.notification.model;
+
+/*
+ * One series value of a measurement notification, e.g. c8y_Temperature.T of
+ * device 4711. A measurement with several fragments or series results in
+ * several values with the same source and time.
+ */
+public final class MeasurementValue {
+
+	private final String sourceId;
+	private final String fragment;
+	private final String series;
+	private final double value;
+	private final String unit;
+	// epoch millis
+	private final long time;
+
+	public MeasurementValue(String sourceId, String fragment, String series, double value, String unit, long time) {
+		this.sourceId = sourceId;
+		this.fragment = fragment;
+		this.series = series;
+		this.value = value;
+		this.unit = unit;
+		this.time = time;
+	}
+
+	public String getSourceId() {
+		return sourceId;
+	}
+
+	public String getFragment() {
+		return fragment;
+	}
+
+	public String getSeries() {
+		return series;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return sourceId + " " + fragment + "." + series + "=" + value + (unit == null ? "" : " " + unit) + " @"
+				+ time;
+	}
+}
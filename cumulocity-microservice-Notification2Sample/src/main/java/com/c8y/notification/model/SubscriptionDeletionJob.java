@@ -0,0 +1,108 @@
+package com.c8y.notification.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Progress of a background deletion of all subscriptions with one name,
+ * returned as JSON by the status endpoint.
+ */
+public class SubscriptionDeletionJob {
+
+	public enum State {
+		RUNNING, COMPLETED, FAILED
+	}
+
+	private final String id;
+	private final String tenantId;
+	private final String subscriptionName;
+	private final long startedAt = System.currentTimeMillis();
+	private final AtomicInteger deleted = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private volatile int total = -1;
+	private volatile long finishedAt;
+	private volatile State state = State.RUNNING;
+	private volatile String error;
+
+	public SubscriptionDeletionJob(String id, String tenantId, String subscriptionName) {
+		this.id = id;
+		this.tenantId = tenantId;
+		this.subscriptionName = subscriptionName;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTenantId() {
+		return tenantId;
+	}
+
+	public String getSubscriptionName() {
+		return subscriptionName;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	/* -1 while the subscriptions are still being listed */
+	public int getTotal() {
+		return total;
+	}
+
+	public int getDeleted() {
+		return deleted.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public long getFinishedAt() {
+		return finishedAt;
+	}
+
+	/* deleted subscriptions per second since the start */
+	public double getThroughput() {
+		long end = finishedAt == 0 ? System.currentTimeMillis() : finishedAt;
+		return deleted.get() * 1000.0 / Math.max(1, end - startedAt);
+	}
+
+	public void setTotal(int total) {
+		this.total = total;
+	}
+
+	public void incrementDeleted() {
+		deleted.incrementAndGet();
+	}
+
+	public void incrementFailed() {
+		failed.incrementAndGet();
+	}
+
+	public void complete() {
+		finish(State.COMPLETED, null);
+	}
+
+	public void fail(String error) {
+		finish(State.FAILED, error);
+	}
+
+	public boolean isFinished() {
+		return state != State.RUNNING;
+	}
+
+	private void finish(State state, String error) {
+		this.error = error;
+		this.finishedAt = System.currentTimeMillis();
+		this.state = state;
+	}
+}
@@ -0,0 +1,10 @@
+package com.c8y.notification.model;
+
+public enum SubscriptionMode {
+
+	/* one mo-context subscription per device and child device */
+	DEVICE,
+	/* one tenant-context subscription, devices are filtered on the client */
+	TENANT
+
+}
@@ -1,22 +1,59 @@
 package com.c8y.notification.model;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.c8y.notification.websocket.jetty.JettyWebSocketClient;
 
 /*
  * a wrapper class to handle connection status
  * It is difficult to efficiently/reliably manage webscoket connection state directly in jetty.
+ *
+ * The status is changed with compare-and-set transitions only, Jetty callbacks,
+ * the reconnect scheduler and the connection check can race without locks:
+ *
+ * INITIALIZING -> CONNECTED -> DISCONNECTED -> RECONNECTING -> CONNECTED ...
+ *
+ * Only the thread that wins DISCONNECTED -> RECONNECTING opens a new socket.
+ * CLOSED is final, a closed connection is never opened again. Every socket gets
+ * a new generation, late callbacks of a replaced socket are ignored.
  */
 public class WebsocketConnection {
 
-	private JettyWebSocketClient wsClient;
-	private ConnectionStatus connectionStatus;
-	private String token;
+	private volatile JettyWebSocketClient wsClient;
+	private final AtomicReference<ConnectionStatus> connectionStatus;
+	private final AtomicInteger generation = new AtomicInteger();
+	private volatile String token;
+	// consumer name for shared tokens, null otherwise
+	private final String consumer;
+	// subscription the token was created for, null if not tracked
+	private final String subscription;
 
 	public WebsocketConnection(JettyWebSocketClient wsClient, ConnectionStatus connectionStatus, String token) {
+		this(wsClient, connectionStatus, token, null);
+	}
+
+	public WebsocketConnection(JettyWebSocketClient wsClient, ConnectionStatus connectionStatus, String token,
+			String consumer) {
+		this(wsClient, connectionStatus, token, consumer, null);
+	}
+
+	public WebsocketConnection(JettyWebSocketClient wsClient, ConnectionStatus connectionStatus, String token,
+			String consumer, String subscription) {
 		super();
 		this.wsClient = wsClient;
-		this.connectionStatus = connectionStatus;
+		this.connectionStatus = new AtomicReference<>(connectionStatus);
 		this.token = token;
+		this.consumer = consumer;
+		this.subscription = subscription;
+	}
+
+	public String getConsumer() {
+		return consumer;
+	}
+
+	public String getSubscription() {
+		return subscription;
 	}
 
 	public String getToken() {
@@ -36,11 +73,69 @@ public class WebsocketConnection {
 	}
 
 	public ConnectionStatus getConnectionStatus() {
-		return connectionStatus;
+		return connectionStatus.get();
+	}
+
+	/**
+	 * @return false if the status was not expected, e.g. another thread changed
+	 *         it first
+	 */
+	public boolean transition(ConnectionStatus expected, ConnectionStatus next) {
+		return connectionStatus.compareAndSet(expected, next);
+	}
+
+	/*
+	 * The socket is open, after the first connect or a reconnect.
+	 */
+	public boolean connected() {
+		return transition(ConnectionStatus.INITIALIZING, ConnectionStatus.CONNECTED)
+				|| transition(ConnectionStatus.RECONNECTING, ConnectionStatus.CONNECTED);
+	}
+
+	/**
+	 * @return true for the caller that moved the connection to DISCONNECTED, it
+	 *         is responsible for scheduling the reconnect
+	 */
+	public boolean disconnected() {
+		while (true) {
+			ConnectionStatus current = connectionStatus.get();
+			if (current == ConnectionStatus.DISCONNECTED || current == ConnectionStatus.CLOSED) {
+				return false;
+			}
+			if (connectionStatus.compareAndSet(current, ConnectionStatus.DISCONNECTED)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Only the socket of the given generation may disconnect the connection.
+	 */
+	public boolean disconnected(int generation) {
+		return generation == this.generation.get() && disconnected();
+	}
+
+	public int getGeneration() {
+		return generation.get();
+	}
+
+	/*
+	 * Called before the socket is replaced, the old one must not change the
+	 * status anymore.
+	 */
+	public int nextGeneration() {
+		return generation.incrementAndGet();
+	}
+
+	/**
+	 * @return false if the connection was closed before
+	 */
+	public boolean close() {
+		return connectionStatus.getAndSet(ConnectionStatus.CLOSED) != ConnectionStatus.CLOSED;
 	}
 
-	public synchronized void setConnectionStatus(ConnectionStatus connectionStatus) {
-		this.connectionStatus = connectionStatus;
+	public boolean isClosed() {
+		return connectionStatus.get() == ConnectionStatus.CLOSED;
 	}
 
 }
@@ -0,0 +1,154 @@
+package com.c8y.notification.platform;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.model.DeviceNode;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceRepresentation;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resolves all devices of a tenant including child devices at any depth.
+ *
+ * The device scan already contains the direct children of every device. Only
+ * children that are not devices themselves, e.g. the modules of a multi-level
+ * gateway, have to be looked up. Their child devices are fetched in parallel
+ * by notification.hierarchy.parallelism workers, level by level. Every id is
+ * passed on once, so a child with several parents or a cycle in the hierarchy
+ * is neither reported twice nor walked forever.
+ */
+@Component
+@Slf4j
+public class DeviceHierarchyWalker {
+
+	private final InventoryScanner inventoryScanner;
+	private final InventoryApi inventoryApi;
+	private final MicroserviceSubscriptionsService subscriptionsService;
+	private final int pageSize;
+	private final ExecutorService workers;
+
+	@Autowired
+	public DeviceHierarchyWalker(InventoryScanner inventoryScanner, InventoryApi inventoryApi,
+			MicroserviceSubscriptionsService subscriptionsService, Properties properties) {
+		this.inventoryScanner = inventoryScanner;
+		this.inventoryApi = inventoryApi;
+		this.subscriptionsService = subscriptionsService;
+		this.pageSize = properties.getInventoryPageSize();
+		this.workers = Executors.newFixedThreadPool(Math.max(1, properties.getHierarchyParallelism()),
+				new WorkerThreadFactory());
+	}
+
+	@PreDestroy
+	public void stop() {
+		workers.shutdownNow();
+	}
+
+	/*
+	 * Receives the device ids of a walk, may block e.g. to limit the pending
+	 * platform calls.
+	 */
+	public interface DeviceSink {
+		void accept(String deviceId) throws InterruptedException;
+	}
+
+	/**
+	 * Passes every device and descendant id to the sink, each exactly once. The
+	 * sink is called on the calling thread, which has to be in the tenant context.
+	 *
+	 * @return number of ids passed to the sink
+	 */
+	public int walk(String tenantId, DeviceSink sink) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		Set<String> visited = new HashSet<>();
+		Set<String> devices = new HashSet<>();
+		List<String> unresolved = new ArrayList<>();
+
+		Iterator<DeviceNode> it = inventoryScanner.devices();
+		while (it.hasNext()) {
+			DeviceNode device = it.next();
+			devices.add(device.getId());
+			if (visited.add(device.getId())) {
+				sink.accept(device.getId());
+			}
+			for (String childId : device.getChildDeviceIds()) {
+				if (visited.add(childId)) {
+					sink.accept(childId);
+					unresolved.add(childId);
+				}
+			}
+		}
+
+		/* children of scanned devices are known, only the others are fetched */
+		CompletionService<DeviceNode> lookups = new ExecutorCompletionService<>(workers);
+		int outstanding = 0;
+		for (String id : unresolved) {
+			if (!devices.contains(id)) {
+				lookups.submit(() -> fetchChildren(tenantId, id));
+				outstanding++;
+			}
+		}
+		int fetched = outstanding;
+		try {
+			while (outstanding > 0) {
+				DeviceNode node = lookups.take().get();
+				outstanding--;
+				for (String childId : node.getChildDeviceIds()) {
+					if (visited.add(childId)) {
+						sink.accept(childId);
+						lookups.submit(() -> fetchChildren(tenantId, childId));
+						outstanding++;
+						fetched++;
+					}
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unable to resolve child devices: " + e.getCause().getMessage(),
+					e.getCause());
+		}
+		log.info("Walked {} devices of tenant {} in {} ms, {} child device lookups", visited.size(), tenantId,
+				System.currentTimeMillis() - start, fetched);
+		return visited.size();
+	}
+
+	private DeviceNode fetchChildren(String tenantId, String parentId) {
+		return subscriptionsService.callForTenant(tenantId, () -> {
+			List<String> childIds = new ArrayList<>();
+			for (ManagedObjectReferenceRepresentation reference : inventoryApi
+					.getManagedObjectApi(GId.asGId(parentId)).getChildDevices().get(pageSize).allPages()) {
+				childIds.add(reference.getManagedObject().getId().getValue());
+			}
+			return new DeviceNode(parentId, null, childIds);
+		});
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "device-hierarchy-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
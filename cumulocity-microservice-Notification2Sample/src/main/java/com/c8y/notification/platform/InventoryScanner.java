@@ -0,0 +1,81 @@
+package com.c8y.notification.platform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.model.DeviceNode;
+import com.c8y.notification.util.CustomInventoryFilter;
+import com.c8y.notification.util.CustomQueryParam;
+import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.sdk.client.QueryParam;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+
+/**
+ * Streams all devices of a tenant page by page.
+ *
+ * Only one page of managed objects is held at a time, each one is reduced to a
+ * {@link DeviceNode} before the next is read. The query orders by id, devices
+ * created during the scan are appended at the end instead of shifting the
+ * pages. Names of the child devices are not requested.
+ *
+ * Has to be used within the tenant context.
+ */
+@Component
+public class InventoryScanner {
+
+	private static final String DEVICE_QUERY = "$filter=(has(c8y_IsDevice)) $orderby=id asc";
+
+	private final InventoryApi inventoryApi;
+	private final int pageSize;
+
+	@Autowired
+	public InventoryScanner(InventoryApi inventoryApi, Properties properties) {
+		this.inventoryApi = inventoryApi;
+		this.pageSize = properties.getInventoryPageSize();
+	}
+
+	/**
+	 * Lazy iterator over all devices, the next page is requested when the
+	 * current one is consumed.
+	 */
+	public Iterator<DeviceNode> devices() {
+		// not the shared CustomQueryParam values, they are not thread safe
+		QueryParam withChildren = new QueryParam(CustomQueryParam.WITH_CHILDREN, "true");
+		QueryParam skipChildrenNames = new QueryParam(CustomQueryParam.SKIP_CHILDREN_NAMES, "true");
+		Iterator<ManagedObjectRepresentation> managedObjects = inventoryApi
+				.getManagedObjectsByFilter(new CustomInventoryFilter().byQuery(DEVICE_QUERY))
+				.get(pageSize, withChildren, skipChildrenNames).allPages().iterator();
+		return new Iterator<DeviceNode>() {
+
+			@Override
+			public boolean hasNext() {
+				return managedObjects.hasNext();
+			}
+
+			@Override
+			public DeviceNode next() {
+				return toNode(managedObjects.next());
+			}
+		};
+	}
+
+	private DeviceNode toNode(ManagedObjectRepresentation managedObject) {
+		List<ManagedObjectReferenceRepresentation> references = managedObject.getChildDevices() == null ? null
+				: managedObject.getChildDevices().getReferences();
+		if (references == null || references.isEmpty()) {
+			return new DeviceNode(managedObject.getId().getValue(), managedObject.getName(), Collections.emptyList());
+		}
+		List<String> childIds = new ArrayList<>(references.size());
+		for (ManagedObjectReferenceRepresentation reference : references) {
+			childIds.add(reference.getManagedObject().getId().getValue());
+		}
+		return new DeviceNode(managedObject.getId().getValue(), managedObject.getName(), childIds);
+	}
+}
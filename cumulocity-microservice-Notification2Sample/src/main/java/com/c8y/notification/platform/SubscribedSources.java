@@ -0,0 +1,63 @@
+package com.c8y.notification.platform;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.model.API;
+import com.c8y.notification.model.SubscriptionMode;
+import com.c8y.notification.websocket.Notification;
+
+/**
+ * Ids of the devices with a measurement subscription per tenant. In tenant
+ * mode the allowlist of the tenant subscription. Only known after a full scan.
+ *
+ * The allowlist is checked by the NotificationHandlerRegistry, so it applies
+ * to every path a notification takes to the handlers, including the spool.
+ */
+@Component
+public class SubscribedSources {
+
+	private final boolean tenantMode;
+	// tenantid - source ids
+	private final Map<String, Set<String>> sources = new ConcurrentHashMap<>();
+
+	@Autowired
+	public SubscribedSources(Properties properties) {
+		this.tenantMode = properties.getSubscriptionMode() == SubscriptionMode.TENANT;
+	}
+
+	/*
+	 * The set is modified in place when devices are created or deleted, null
+	 * before the tenant was reconciled.
+	 */
+	public Set<String> get(String tenantId) {
+		return sources.get(tenantId);
+	}
+
+	public void put(String tenantId, Set<String> sourceIds) {
+		sources.put(tenantId, sourceIds);
+	}
+
+	public void remove(String tenantId) {
+		sources.remove(tenantId);
+	}
+
+	/**
+	 * The tenant subscription delivers the measurements of all sources. Until the
+	 * device scan completed, or without a source id, nothing is filtered. Other
+	 * APIs and device mode subscriptions are never filtered.
+	 */
+	public boolean isAllowed(String tenantId, Notification notification) {
+		if (!tenantMode || API.fromNotificationApi(notification.getApi()) != API.MEASUREMENT) {
+			return true;
+		}
+		Set<String> allowlist = sources.get(tenantId);
+		CharSequence sourceId = notification.getSourceId();
+		return allowlist == null || sourceId == null || allowlist.contains(sourceId.toString());
+	}
+}
@@ -0,0 +1,320 @@
+package com.c8y.notification.platform;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.model.API;
+import com.c8y.notification.util.JumpHash;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.rest.representation.reliable.notification.NotificationSubscriptionFilterRepresentation;
+import com.cumulocity.rest.representation.reliable.notification.NotificationSubscriptionRepresentation;
+import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionApi;
+import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionFilter;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Makes sure every device and descendant of a tenant has its mo-context
+ * subscription.
+ *
+ * Instead of listing the subscriptions of every device before creating one,
+ * all existing subscriptions with the given name are read once and indexed by
+ * source id. The device scan is compared against that index and only the
+ * missing subscriptions are created, by notification.reconcile.parallelism
+ * workers shared by all tenants.
+ *
+ * The devices can be spread over several subscriptions, name-0 to name-(n-1),
+ * by jump consistent hash of the device id (see {@link #shardName}). When the
+ * shard count changes, only the devices that hash to another shard get a new
+ * subscription, their old one is deleted once the new one exists.
+ */
+@Component
+@Slf4j
+public class SubscriptionReconciler {
+
+	private static final int PAGE_SIZE = 2000;
+
+	private final NotificationSubscriptionApi subscriptionApi;
+	private final DeviceHierarchyWalker hierarchyWalker;
+	private final MicroserviceSubscriptionsService subscriptionsService;
+	private final int parallelism;
+	private final ExecutorService workers;
+
+	@Autowired
+	public SubscriptionReconciler(NotificationSubscriptionApi subscriptionApi, DeviceHierarchyWalker hierarchyWalker,
+			MicroserviceSubscriptionsService subscriptionsService, Properties properties) {
+		this.subscriptionApi = subscriptionApi;
+		this.hierarchyWalker = hierarchyWalker;
+		this.subscriptionsService = subscriptionsService;
+		this.parallelism = Math.max(1, properties.getReconcileParallelism());
+		this.workers = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+	}
+
+	@PreDestroy
+	public void stop() {
+		workers.shutdownNow();
+	}
+
+	/**
+	 * The subscription of a device: the name itself for a single shard,
+	 * otherwise name-k with k chosen by jump consistent hash.
+	 */
+	public static String shardName(String subscriptionName, int shards, String deviceId) {
+		if (shards <= 1) {
+			return subscriptionName;
+		}
+		return subscriptionName + "-" + JumpHash.bucket(deviceId, shards);
+	}
+
+	public static List<String> shardNames(String subscriptionName, int shards) {
+		if (shards <= 1) {
+			return List.of(subscriptionName);
+		}
+		List<String> names = new ArrayList<>(shards);
+		for (int k = 0; k < shards; k++) {
+			names.add(subscriptionName + "-" + k);
+		}
+		return names;
+	}
+
+	/*
+	 * True for the name and all of its shards, whatever the shard count is.
+	 */
+	public static boolean isShardOf(String subscriptionName, String name) {
+		return name != null && (name.equals(subscriptionName) || (name.startsWith(subscriptionName)
+				&& name.length() > subscriptionName.length() + 1 && name.charAt(subscriptionName.length()) == '-'
+				&& isDigits(name, subscriptionName.length() + 1)));
+	}
+
+	/**
+	 * Creates the missing subscriptions and waits until all of them are done. Has
+	 * to be called within the tenant context.
+	 *
+	 * @param shards number of subscriptions the devices are spread over
+	 * @return counts of the run and the subscribed sources, failed subscriptions
+	 *         are created by the next run
+	 */
+	public Result reconcile(String tenantId, String subscriptionName, int shards, API api)
+			throws InterruptedException {
+		long start = System.currentTimeMillis();
+		Result result = new Result();
+		Map<String, List<NotificationSubscriptionRepresentation>> existing = loadSubscriptions(subscriptionName);
+		log.info("Tenant {} has {} devices with {} subscriptions", tenantId, existing.size(), subscriptionName);
+
+		/* at most two creations per worker are queued, the scan waits for the rest */
+		Semaphore pending = new Semaphore(parallelism * 2);
+		try {
+			hierarchyWalker.walk(tenantId, deviceId -> reconcile(tenantId,
+					shardName(subscriptionName, shards, deviceId), api, deviceId, existing.remove(deviceId), pending,
+					result));
+		} finally {
+			/* all permits back means all creations completed */
+			pending.acquire(parallelism * 2);
+		}
+		log.info(
+				"Reconciled {} subscriptions ({} shards) for tenant {} in {} ms: {} existing, {} created, {} moved, {} failed",
+				subscriptionName, shards, tenantId, System.currentTimeMillis() - start, result.getExisting(),
+				result.getCreated(), result.getMoved(), result.getFailed());
+		return result;
+	}
+
+	/*
+	 * current holds the subscriptions the device has in any shard. The one of the
+	 * target shard is kept, the others are deleted after the target exists.
+	 */
+	private void reconcile(String tenantId, String target, API api, String sourceId,
+			List<NotificationSubscriptionRepresentation> current, Semaphore pending, Result result)
+			throws InterruptedException {
+		result.sources.add(sourceId);
+		List<NotificationSubscriptionRepresentation> stale = current == null ? List.of() : current;
+		boolean exists = current != null && current.removeIf(s -> target.equals(s.getSubscription()));
+		if (exists && stale.isEmpty()) {
+			result.existing.incrementAndGet();
+			return;
+		}
+		NotificationSubscriptionRepresentation subscription = exists ? null : newSubscription(target, api, sourceId);
+		pending.acquire();
+		try {
+			workers.execute(() -> {
+				try {
+					subscriptionsService.runForTenant(tenantId, () -> {
+						if (subscription != null) {
+							subscriptionApi.subscribe(subscription);
+						}
+						for (NotificationSubscriptionRepresentation old : stale) {
+							subscriptionApi.delete(old);
+						}
+					});
+					if (!stale.isEmpty()) {
+						result.moved.incrementAndGet();
+					} else {
+						result.created.incrementAndGet();
+					}
+				} catch (Exception e) {
+					log.error("Unable to create subscription {} for device {}: {}", target, sourceId, e.getMessage());
+					result.failed.incrementAndGet();
+					result.sources.remove(sourceId);
+				} finally {
+					pending.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			pending.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Ids of all devices and their descendants, for a tenant-context subscription
+	 * that is filtered on the client. Has to be called within the tenant context.
+	 */
+	public Set<String> getDeviceIds(String tenantId) throws InterruptedException {
+		Set<String> ids = ConcurrentHashMap.newKeySet();
+		hierarchyWalker.walk(tenantId, ids::add);
+		return ids;
+	}
+
+	/**
+	 * Returns the tenant-context subscription with the given name, creates it if
+	 * it does not exist. Has to be called within the tenant context.
+	 *
+	 * @param typeFilter only notifications of this type, e.g. "c8y_Temperature",
+	 *                   not filtered if empty
+	 */
+	public NotificationSubscriptionRepresentation ensureTenantSubscription(String subscriptionName, API api,
+			String typeFilter) {
+		Iterator<NotificationSubscriptionRepresentation> it = subscriptionApi
+				.getSubscriptionsByFilter(
+						new NotificationSubscriptionFilter().bySubscription(subscriptionName).byContext("tenant"))
+				.get().allPages().iterator();
+		while (it.hasNext()) {
+			NotificationSubscriptionRepresentation subscription = it.next();
+			if (subscriptionName.equals(subscription.getSubscription())) {
+				log.info("Reusing tenant subscription {} with ID {}", subscriptionName, subscription.getId().getValue());
+				return subscription;
+			}
+		}
+		NotificationSubscriptionFilterRepresentation filter = new NotificationSubscriptionFilterRepresentation();
+		filter.setApis(List.of(api.notificationFilter));
+		if (typeFilter != null && !typeFilter.isEmpty()) {
+			filter.setTypeFilter(typeFilter);
+		}
+		NotificationSubscriptionRepresentation subscription = new NotificationSubscriptionRepresentation();
+		subscription.setContext("tenant");
+		subscription.setSubscription(subscriptionName);
+		subscription.setSubscriptionFilter(filter);
+		log.info("Creating tenant subscription {} for {} with type filter '{}'", subscriptionName, api, typeFilter);
+		return subscriptionApi.subscribe(subscription);
+	}
+
+	/*
+	 * All mo subscriptions of the name and its shards by source id. Only name, id
+	 * and self are kept, that is all the comparison and a delete need.
+	 */
+	private Map<String, List<NotificationSubscriptionRepresentation>> loadSubscriptions(String subscriptionName) {
+		Map<String, List<NotificationSubscriptionRepresentation>> subscriptions = new HashMap<>();
+		Iterator<NotificationSubscriptionRepresentation> it = subscriptionApi
+				.getSubscriptionsByFilter(new NotificationSubscriptionFilter().byContext("mo")).get(PAGE_SIZE)
+				.allPages().iterator();
+		while (it.hasNext()) {
+			NotificationSubscriptionRepresentation subscription = it.next();
+			if (subscription.getSource() == null || subscription.getSource().getId() == null
+					|| !isShardOf(subscriptionName, subscription.getSubscription())) {
+				continue;
+			}
+			NotificationSubscriptionRepresentation reference = new NotificationSubscriptionRepresentation();
+			reference.setId(subscription.getId());
+			reference.setSelf(subscription.getSelf());
+			reference.setSubscription(subscription.getSubscription());
+			subscriptions.computeIfAbsent(subscription.getSource().getId().getValue(), k -> new ArrayList<>(1))
+					.add(reference);
+		}
+		return subscriptions;
+	}
+
+	private static boolean isDigits(String value, int from) {
+		for (int i = from; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The source only needs the id, the device itself is not sent along.
+	 */
+	private NotificationSubscriptionRepresentation newSubscription(String subscriptionName, API api, String sourceId) {
+		ManagedObjectRepresentation source = new ManagedObjectRepresentation();
+		source.setId(GId.asGId(sourceId));
+		NotificationSubscriptionFilterRepresentation filter = new NotificationSubscriptionFilterRepresentation();
+		filter.setApis(List.of(api.notificationFilter));
+		NotificationSubscriptionRepresentation subscription = new NotificationSubscriptionRepresentation();
+		subscription.setContext("mo");
+		subscription.setSubscription(subscriptionName);
+		subscription.setSource(source);
+		subscription.setSubscriptionFilter(filter);
+		return subscription;
+	}
+
+	public static class Result {
+		private final Set<String> sources = ConcurrentHashMap.newKeySet();
+		private final AtomicInteger existing = new AtomicInteger();
+		private final AtomicInteger created = new AtomicInteger();
+		private final AtomicInteger moved = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+
+		public int getExisting() {
+			return existing.get();
+		}
+
+		public int getCreated() {
+			return created.get();
+		}
+
+		/* devices whose subscription changed the shard */
+		public int getMoved() {
+			return moved.get();
+		}
+
+		public int getFailed() {
+			return failed.get();
+		}
+
+		/*
+		 * Ids of all devices that have the subscription after the run, thread safe.
+		 */
+		public Set<String> getSources() {
+			return sources;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "subscription-reconcile-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
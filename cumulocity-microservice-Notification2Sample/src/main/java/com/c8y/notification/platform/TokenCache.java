@@ -0,0 +1,197 @@
+package com.c8y.notification.platform;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.rest.representation.reliable.notification.NotificationTokenRequestRepresentation;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Notification tokens per tenant, subscription and subscriber.
+ *
+ * A token is valid for notification.token.expiresInMinutes (1440 by default).
+ * Instead of creating a new one on every reconnect the cached token is reused,
+ * and it is refreshed in the background notification.token.refreshBeforeMinutes
+ * before it expires. If the refresh fails the token is created again, so a
+ * reconnect only has to wait for the platform when there is no valid token at
+ * all.
+ *
+ * {@link #get} has to be called within the tenant context, the background
+ * refresh switches to the tenant of the token itself.
+ */
+@Component
+@Slf4j
+public class TokenCache {
+
+	private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private final TokenService tokenService;
+	private final MicroserviceSubscriptionsService subscriptionsService;
+	private final Properties properties;
+	private final Map<String, CachedToken> tokens = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "token-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Autowired
+	public TokenCache(TokenService tokenService, MicroserviceSubscriptionsService subscriptionsService,
+			Properties properties) {
+		this.tokenService = tokenService;
+		this.subscriptionsService = subscriptionsService;
+		this.properties = properties;
+	}
+
+	@PreDestroy
+	public void stop() {
+		refreshExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns the cached token if it is still valid, otherwise creates a new one.
+	 */
+	public String get(String tenantId, String subscription, String subscriber, boolean shared) {
+		CachedToken entry = tokens.computeIfAbsent(key(tenantId, subscription, subscriber, shared),
+				k -> new CachedToken(tenantId, subscription, subscriber, shared));
+		synchronized (entry) {
+			if (entry.token != null && System.currentTimeMillis() < entry.expiresAt - RETRY_DELAY_MILLIS) {
+				return entry.token;
+			}
+			log.info("Creating token for subscription {} and subscriber {}", subscription, subscriber);
+			entry.update(tokenService.create(new NotificationTokenRequestRepresentation(subscriber, subscription,
+					properties.getTokenExpiresInMinutes(), shared)), expiresAt());
+			scheduleRefresh(entry, refreshAt(entry));
+			return entry.token;
+		}
+	}
+
+	/*
+	 * The platform rejected the token, e.g. the subscription was recreated. The
+	 * next get creates a new one.
+	 */
+	public void invalidate(String tenantId, String subscription, String subscriber, boolean shared) {
+		CachedToken entry = tokens.remove(key(tenantId, subscription, subscriber, shared));
+		if (entry != null) {
+			synchronized (entry) {
+				entry.cancelRefresh();
+			}
+		}
+	}
+
+	/*
+	 * Forget all tokens of a tenant, e.g. when the microservice was unsubscribed.
+	 */
+	public void evict(String tenantId) {
+		tokens.values().removeIf(entry -> {
+			if (entry.tenantId.equals(tenantId)) {
+				synchronized (entry) {
+					entry.cancelRefresh();
+				}
+				return true;
+			}
+			return false;
+		});
+	}
+
+	private void refresh(CachedToken entry) {
+		String current;
+		synchronized (entry) {
+			if (tokens.get(entry.key()) != entry || entry.token == null) {
+				return;
+			}
+			current = entry.token;
+		}
+		String refreshed;
+		try {
+			refreshed = subscriptionsService.callForTenant(entry.tenantId, () -> {
+				try {
+					return tokenService.refresh(current);
+				} catch (Exception e) {
+					log.warn("Refreshing token for subscription {} of tenant {} failed, creating a new one: {}",
+							entry.subscription, entry.tenantId, e.getMessage());
+					return tokenService.create(new NotificationTokenRequestRepresentation(entry.subscriber,
+							entry.subscription, properties.getTokenExpiresInMinutes(), entry.shared));
+				}
+			});
+		} catch (Exception e) {
+			log.error("Unable to renew token for subscription {} of tenant {}: {}", entry.subscription,
+					entry.tenantId, e.getMessage());
+			synchronized (entry) {
+				scheduleRefresh(entry, System.currentTimeMillis() + RETRY_DELAY_MILLIS);
+			}
+			return;
+		}
+		synchronized (entry) {
+			/* a concurrent get may have created a new token in the meantime */
+			if (tokens.get(entry.key()) == entry && current.equals(entry.token)) {
+				entry.update(refreshed, expiresAt());
+				log.info("Token for subscription {} of tenant {} refreshed", entry.subscription, entry.tenantId);
+			}
+			scheduleRefresh(entry, refreshAt(entry));
+		}
+	}
+
+	private void scheduleRefresh(CachedToken entry, long at) {
+		entry.cancelRefresh();
+		entry.refresh = refreshExecutor.schedule(() -> refresh(entry),
+				Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	private long expiresAt() {
+		return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(properties.getTokenExpiresInMinutes());
+	}
+
+	private long refreshAt(CachedToken entry) {
+		return entry.expiresAt - TimeUnit.MINUTES.toMillis(properties.getTokenRefreshBeforeMinutes());
+	}
+
+	private static String key(String tenantId, String subscription, String subscriber, boolean shared) {
+		return tenantId + "/" + subscription + "/" + subscriber + "/" + shared;
+	}
+
+	private static class CachedToken {
+		private final String tenantId;
+		private final String subscription;
+		private final String subscriber;
+		private final boolean shared;
+		private String token;
+		private long expiresAt;
+		private ScheduledFuture<?> refresh;
+
+		CachedToken(String tenantId, String subscription, String subscriber, boolean shared) {
+			this.tenantId = tenantId;
+			this.subscription = subscription;
+			this.subscriber = subscriber;
+			this.shared = shared;
+		}
+
+		String key() {
+			return TokenCache.key(tenantId, subscription, subscriber, shared);
+		}
+
+		void update(String token, long expiresAt) {
+			this.token = token;
+			this.expiresAt = expiresAt;
+		}
+
+		void cancelRefresh() {
+			if (refresh != null) {
+				refresh.cancel(false);
+				refresh = null;
+			}
+		}
+	}
+}
@@ -1,11 +1,23 @@
 package com.c8y.notification.service;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.c8y.notification.Properties;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
 import com.cumulocity.model.event.CumulocityAlarmStatuses;
 import com.cumulocity.model.event.CumulocitySeverities;
 import com.cumulocity.model.idtype.GId;
@@ -16,6 +28,19 @@ import com.cumulocity.sdk.client.alarm.AlarmFilter;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Websocket disconnect alarms.
+ *
+ * The socket callbacks only record whether the alarm should be active, they
+ * never call the platform. A background thread brings the platform in line
+ * once the state did not change for notification.alarm.debounceSeconds, or at
+ * the latest after five times that. A connection that drops and comes back
+ * within the debounce time causes no request at all.
+ *
+ * The ids of the active alarms are kept locally. The platform is only queried
+ * once per alarm, the first time it is flushed after startup, to find alarms
+ * left over by a previous run. Clearing then updates the known alarms by id.
+ */
 @Slf4j
 @Service
 public class AlarmService {
@@ -23,58 +48,187 @@ public class AlarmService {
 	@Autowired
 	private AlarmApi alarmApi;
 
-	public void createAlarm(String sourceId, String alarmType) {
-
-		try {
-			ManagedObjectRepresentation source = new ManagedObjectRepresentation();
-			source.setId(GId.asGId(sourceId));
-			AlarmRepresentation alarm = new AlarmRepresentation();
-			alarm.setSource(source);
-			alarm.setText("Websocket disconnect detected");
-			alarm.setType(alarmType);
-			alarm.setDateTime(new DateTime());
-			alarm.setSeverity(CumulocitySeverities.CRITICAL.toString());
-			alarm.setStatus(CumulocityAlarmStatuses.ACTIVE.toString());
-
-			AlarmRepresentation resp = alarmApi.create(alarm);
-			log.info(resp.toJSON());
-		} catch (Exception e) {
-			log.error("Unable to create alarm");
-			log.error(e.getMessage());
-		}
+	@Autowired
+	private MicroserviceSubscriptionsService subscriptionsService;
+
+	private final long debounceMillis;
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "alarm-flush");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// tenantid/source/type - alarm state
+	private final Map<String, DisconnectAlarm> alarms = new ConcurrentHashMap<>();
+
+	@Autowired
+	public AlarmService(Properties properties) {
+		this.debounceMillis = TimeUnit.SECONDS.toMillis(Math.max(1, properties.getAlarmDebounceSeconds()));
+	}
+
+	@PostConstruct
+	public void start() {
+		flusher.scheduleWithFixedDelay(this::flush, debounceMillis, Math.max(100, debounceMillis / 4),
+				TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		flusher.shutdownNow();
+	}
 
+	/*
+	 * Non blocking, safe to call from socket threads.
+	 */
+	public void raiseDisconnectAlarm(String tenantId, String sourceId, String alarmType) {
+		alarmOf(tenantId, sourceId, alarmType).set(true, System.currentTimeMillis());
+	}
+
+	/*
+	 * Non blocking, safe to call from socket threads.
+	 */
+	public void clearDisconnectAlarm(String tenantId, String sourceId, String alarmType) {
+		alarmOf(tenantId, sourceId, alarmType).set(false, System.currentTimeMillis());
+	}
+
+	/*
+	 * Tenant unsubscribed, its credentials are no longer valid.
+	 */
+	public void evict(String tenantId) {
+		alarms.values().removeIf(alarm -> alarm.tenantId.equals(tenantId));
+	}
+
+	public AlarmRepresentation createAlarm(String sourceId, String alarmType) {
+		ManagedObjectRepresentation source = new ManagedObjectRepresentation();
+		source.setId(GId.asGId(sourceId));
+		AlarmRepresentation alarm = new AlarmRepresentation();
+		alarm.setSource(source);
+		alarm.setText("Websocket disconnect detected");
+		alarm.setType(alarmType);
+		alarm.setDateTime(new DateTime());
+		alarm.setSeverity(CumulocitySeverities.CRITICAL.toString());
+		alarm.setStatus(CumulocityAlarmStatuses.ACTIVE.toString());
+
+		AlarmRepresentation resp = alarmApi.create(alarm);
+		log.info(resp.toJSON());
+		return resp;
 	}
 
 	public Iterator<AlarmRepresentation> getDisconnectAlarmsIt(String sourceId, String type) {
 
 		AlarmFilter af = new AlarmFilter().bySource(GId.asGId(sourceId)).bySeverity(CumulocitySeverities.CRITICAL)
-				.byType(type);
+				.byType(type).byStatus(CumulocityAlarmStatuses.ACTIVE);
 		return alarmApi.getAlarmsByFilter(af).get().allPages().iterator();
 
 	}
 
-	public void clearWebsocketDisconnectAlarm(String sourceId, String alarmType) {
-		try {
-			Iterator<AlarmRepresentation> it = getDisconnectAlarmsIt(sourceId, alarmType);
-			while (it.hasNext()) {
-				AlarmRepresentation alarm = it.next();
-				clearAlarm(alarm);
+	private DisconnectAlarm alarmOf(String tenantId, String sourceId, String alarmType) {
+		return alarms.computeIfAbsent(tenantId + "/" + sourceId + "/" + alarmType,
+				key -> new DisconnectAlarm(tenantId, sourceId, alarmType));
+	}
+
+	private void flush() {
+		long now = System.currentTimeMillis();
+		for (DisconnectAlarm alarm : alarms.values()) {
+			if (!alarm.isDue(now, debounceMillis)) {
+				continue;
+			}
+			try {
+				subscriptionsService.runForTenant(alarm.tenantId, () -> sync(alarm));
+			} catch (Exception e) {
+				/* stays pending, retried with the next flush */
+				log.error("Unable to update alarm {} of tenant {}: {}", alarm.type, alarm.tenantId, e.getMessage());
 			}
-		} catch (Exception e) {
-			log.error("An error occurred while trying to clear alarm");
-			log.error(e.getMessage());
 		}
 	}
 
-	private void clearAlarm(AlarmRepresentation alarm) {
-		try {
-			alarm.setStatus(CumulocityAlarmStatuses.CLEARED.toString());
-			AlarmRepresentation resp = alarmApi.update(alarm);
-			log.info("Alarm cleared: " + resp.toJSON());
-		} catch (Exception e) {
-			log.error("Unable to update alarm");
-			log.error(e.getMessage());
+	/*
+	 * Runs on the flush thread only, which owns activeIds.
+	 */
+	private void sync(DisconnectAlarm alarm) {
+		if (alarm.activeIds == null) {
+			List<String> ids = new ArrayList<>();
+			Iterator<AlarmRepresentation> it = getDisconnectAlarmsIt(alarm.sourceId, alarm.type);
+			while (it.hasNext()) {
+				ids.add(it.next().getId().getValue());
+			}
+			alarm.activeIds = ids;
+		}
+		long version = alarm.getVersion();
+		if (alarm.isActive()) {
+			if (alarm.activeIds.isEmpty()) {
+				alarm.activeIds.add(createAlarm(alarm.sourceId, alarm.type).getId().getValue());
+			}
+		} else {
+			while (!alarm.activeIds.isEmpty()) {
+				clearAlarm(alarm.activeIds.get(0));
+				alarm.activeIds.remove(0);
+			}
 		}
+		alarm.synced(version);
+	}
+
+	private void clearAlarm(String alarmId) {
+		AlarmRepresentation alarm = new AlarmRepresentation();
+		alarm.setId(GId.asGId(alarmId));
+		alarm.setStatus(CumulocityAlarmStatuses.CLEARED.toString());
+		alarmApi.update(alarm);
+		log.info("Alarm cleared: {}", alarmId);
 	}
 
+	private static class DisconnectAlarm {
+		private final String tenantId;
+		private final String sourceId;
+		private final String type;
+		// ids of the active alarms on the platform, null until loaded
+		private List<String> activeIds;
+		private boolean active;
+		private long version;
+		private boolean pending;
+		private long pendingSince;
+		private long changedAt;
+
+		private DisconnectAlarm(String tenantId, String sourceId, String type) {
+			this.tenantId = tenantId;
+			this.sourceId = sourceId;
+			this.type = type;
+		}
+
+		/*
+		 * The first call is always pending, the platform may still have an alarm of
+		 * the previous run.
+		 */
+		private synchronized void set(boolean active, long now) {
+			if (this.active == active && version > 0) {
+				return;
+			}
+			this.active = active;
+			version++;
+			changedAt = now;
+			if (!pending) {
+				pending = true;
+				pendingSince = now;
+			}
+		}
+
+		private synchronized boolean isDue(long now, long debounceMillis) {
+			return pending && (now - changedAt >= debounceMillis || now - pendingSince >= 5 * debounceMillis);
+		}
+
+		private synchronized boolean isActive() {
+			return active;
+		}
+
+		private synchronized long getVersion() {
+			return version;
+		}
+
+		/*
+		 * A change during the sync keeps the alarm pending.
+		 */
+		private synchronized void synced(long version) {
+			if (this.version == version) {
+				pending = false;
+			}
+		}
+	}
 }
@@ -6,11 +6,7 @@ import java.util.List;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
-import com.cumulocity.sdk.client.inventory.InventoryApi;
-import com.cumulocity.sdk.client.inventory.InventoryFilter;
-import com.cumulocity.sdk.client.inventory.ManagedObjectCollection;
-import com.google.common.collect.Lists;
+import com.c8y.notification.platform.InventoryScanner;
 
 /**
  * This is an example service. This should be removed for your real project!
@@ -21,23 +17,16 @@ import com.google.common.collect.Lists;
 @Service
 public class ExampleService {
 	
-	private InventoryApi inventoryApi;
+	private InventoryScanner inventoryScanner;
 
 	@Autowired
-	public ExampleService(InventoryApi inventoryApi) {
-		this.inventoryApi = inventoryApi;
+	public ExampleService(InventoryScanner inventoryScanner) {
+		this.inventoryScanner = inventoryScanner;
 	}
 	
 	public List<String> getAllDeviceNames() {
 		List<String> allDeviceNames = new ArrayList<>();
-		
-		InventoryFilter inventoryFilter = new InventoryFilter();
-		inventoryFilter.byFragmentType("c8y_IsDevice");
-		ManagedObjectCollection managedObjectsByFilter = inventoryApi.getManagedObjectsByFilter(inventoryFilter);
-		List<ManagedObjectRepresentation> allObjects = Lists.newArrayList( managedObjectsByFilter.get().allPages());
-		for (ManagedObjectRepresentation managedObjectRepresentation : allObjects) {
-			allDeviceNames.add(managedObjectRepresentation.getName());
-		}
+		inventoryScanner.devices().forEachRemaining(device -> allDeviceNames.add(device.getName()));
 		return allDeviceNames;
 	}
 	
@@ -0,0 +1,185 @@
+package com.c8y.notification.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.model.SubscriptionDeletionJob;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.rest.representation.reliable.notification.NotificationSubscriptionRepresentation;
+import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionApi;
+import com.cumulocity.sdk.client.messaging.notifications.NotificationSubscriptionFilter;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Deletes all subscriptions with a given name in the background.
+ *
+ * The subscriptions are queried by name, no inventory scan is needed. Their ids
+ * are listed first, deleting while paging would shift the pages. The deletes
+ * run on notification.delete.parallelism workers shared by all jobs.
+ */
+@Service
+@Slf4j
+public class SubscriptionDeletionService {
+
+	private static final int PAGE_SIZE = 2000;
+	// finished jobs stay visible on the status endpoint for this long
+	private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final NotificationSubscriptionApi subscriptionApi;
+	private final MicroserviceSubscriptionsService subscriptionsService;
+	private final int parallelism;
+	private final ExecutorService workers;
+	private final ExecutorService jobs;
+	private final Map<String, SubscriptionDeletionJob> jobsById = new ConcurrentHashMap<>();
+
+	@Autowired
+	public SubscriptionDeletionService(NotificationSubscriptionApi subscriptionApi,
+			MicroserviceSubscriptionsService subscriptionsService, Properties properties) {
+		this.subscriptionApi = subscriptionApi;
+		this.subscriptionsService = subscriptionsService;
+		this.parallelism = Math.max(1, properties.getDeleteParallelism());
+		this.workers = Executors.newFixedThreadPool(parallelism, daemonThreads("subscription-delete-"));
+		this.jobs = Executors.newCachedThreadPool(daemonThreads("subscription-delete-job-"));
+	}
+
+	@PreDestroy
+	public void stop() {
+		jobs.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Starts deleting the subscriptions of the tenant. A job that is already
+	 * running for the same subscription name is returned instead of starting a
+	 * second one. The job deletes the subscriptions of all given names, e.g. the
+	 * shards of a subscription.
+	 */
+	public SubscriptionDeletionJob start(String tenantId, String subscriptionName, List<String> subscriptionNames) {
+		removeExpiredJobs();
+		synchronized (jobsById) {
+			for (SubscriptionDeletionJob job : jobsById.values()) {
+				if (!job.isFinished() && job.getTenantId().equals(tenantId)
+						&& job.getSubscriptionName().equals(subscriptionName)) {
+					return job;
+				}
+			}
+			SubscriptionDeletionJob job = new SubscriptionDeletionJob(UUID.randomUUID().toString(), tenantId,
+					subscriptionName);
+			jobsById.put(job.getId(), job);
+			jobs.execute(() -> run(job, subscriptionNames));
+			return job;
+		}
+	}
+
+	/*
+	 * Jobs are only visible to their own tenant.
+	 */
+	public Optional<SubscriptionDeletionJob> getJob(String tenantId, String jobId) {
+		return Optional.ofNullable(jobsById.get(jobId)).filter(job -> job.getTenantId().equals(tenantId));
+	}
+
+	private void run(SubscriptionDeletionJob job, List<String> subscriptionNames) {
+		log.info("Deleting subscriptions {} of tenant {}, job {}", job.getSubscriptionName(), job.getTenantId(),
+				job.getId());
+		try {
+			List<NotificationSubscriptionRepresentation> subscriptions = new ArrayList<>();
+			for (String subscriptionName : subscriptionNames) {
+				subscriptions.addAll(subscriptionsService.callForTenant(job.getTenantId(),
+						() -> listSubscriptions(subscriptionName)));
+			}
+			job.setTotal(subscriptions.size());
+			Semaphore pending = new Semaphore(parallelism * 2);
+			try {
+				for (NotificationSubscriptionRepresentation subscription : subscriptions) {
+					pending.acquire();
+					try {
+						workers.execute(() -> delete(job, subscription, pending));
+					} catch (RuntimeException e) {
+						pending.release();
+						throw e;
+					}
+				}
+			} finally {
+				pending.acquire(parallelism * 2);
+			}
+			job.complete();
+			log.info("Deleted {} of {} subscriptions {} for tenant {} ({} failed, {} per second)", job.getDeleted(),
+					job.getTotal(), job.getSubscriptionName(), job.getTenantId(), job.getFailed(),
+					String.format("%.1f", job.getThroughput()));
+		} catch (InterruptedException e) {
+			job.fail("Interrupted");
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.error("Subscription deletion job {} failed: {}", job.getId(), e.getMessage());
+			job.fail(e.getMessage());
+		}
+	}
+
+	private void delete(SubscriptionDeletionJob job, NotificationSubscriptionRepresentation subscription,
+			Semaphore pending) {
+		try {
+			subscriptionsService.runForTenant(job.getTenantId(), () -> subscriptionApi.delete(subscription));
+			job.incrementDeleted();
+		} catch (Exception e) {
+			log.warn("Unable to delete subscription {}: {}", subscription.getId().getValue(), e.getMessage());
+			job.incrementFailed();
+		} finally {
+			pending.release();
+		}
+	}
+
+	/*
+	 * Only the device subscriptions, a tenant subscription with the same name is
+	 * kept. Only id and self are kept, that is all a delete needs.
+	 */
+	private List<NotificationSubscriptionRepresentation> listSubscriptions(String subscriptionName) {
+		List<NotificationSubscriptionRepresentation> subscriptions = new ArrayList<>();
+		Iterator<NotificationSubscriptionRepresentation> it = subscriptionApi
+				.getSubscriptionsByFilter(
+						new NotificationSubscriptionFilter().bySubscription(subscriptionName).byContext("mo"))
+				.get(PAGE_SIZE).allPages().iterator();
+		while (it.hasNext()) {
+			NotificationSubscriptionRepresentation subscription = it.next();
+			if (!subscriptionName.equals(subscription.getSubscription())) {
+				continue;
+			}
+			NotificationSubscriptionRepresentation reference = new NotificationSubscriptionRepresentation();
+			reference.setId(subscription.getId());
+			reference.setSelf(subscription.getSelf());
+			subscriptions.add(reference);
+		}
+		return subscriptions;
+	}
+
+	private void removeExpiredJobs() {
+		long now = System.currentTimeMillis();
+		jobsById.values().removeIf(job -> job.isFinished() && now - job.getFinishedAt() > RETENTION_MILLIS);
+	}
+
+	private static ThreadFactory daemonThreads(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,233 @@
+package com.c8y.notification.service;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.c8y.notification.Properties;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Initializes the subscribed tenants with bounded concurrency.
+ *
+ * On pod start a subscription event arrives for every tenant at once. Instead
+ * of running all initializations in a burst, they are queued and run by
+ * notification.startup.concurrency workers. Tenants of
+ * notification.startup.priorityTenants go first, the others in the order of
+ * their events. Two initializations start at least
+ * notification.startup.staggerMillis apart, the platform sees a steady rate of
+ * requests and the cold start time is about tenants * stagger.
+ *
+ * The time from the subscription event to the first notification of a tenant
+ * is recorded as notification.startup.firstNotification. The clock only runs
+ * for tenants whose initialization opens a connection.
+ */
+@Service
+@Slf4j
+public class TenantStartupCoordinator {
+
+	private static final String QUEUED_METRIC = "notification.startup.queued";
+	private static final String INIT_METRIC = "notification.startup.init";
+	private static final String FIRST_NOTIFICATION_METRIC = "notification.startup.firstNotification";
+
+	private final MeterRegistry meterRegistry;
+	private final Set<String> priorityTenants = new HashSet<>();
+	private final long staggerNanos;
+	private final ThreadPoolExecutor workers;
+	private final AtomicLong sequence = new AtomicLong();
+	// start time of the next initialization, see awaitSlot
+	private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+	// tenantid - time of the subscription event, from the connect to the first notification
+	private final Map<String, Long> awaitingFirstNotification = new ConcurrentHashMap<>();
+	// tenantid - time of the subscription event, while initializing
+	private final Map<String, Long> initializing = new ConcurrentHashMap<>();
+	// tenantid - time to the first notification, removed when the tenant unsubscribes
+	private final Map<String, Timer> firstNotificationTimers = new ConcurrentHashMap<>();
+
+	@Autowired
+	public TenantStartupCoordinator(Properties properties, MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		for (String tenantId : properties.getStartupPriorityTenants()) {
+			if (!tenantId.isBlank()) {
+				priorityTenants.add(tenantId.trim());
+			}
+		}
+		this.staggerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, properties.getStartupStaggerMillis()));
+		int concurrency = Math.max(1, properties.getStartupConcurrency());
+		/* execute() keeps the tasks comparable, submit() would wrap them */
+		this.workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>(), new WorkerThreadFactory());
+		/* otherwise the first tasks start a worker each and skip the queue order */
+		workers.prestartAllCoreThreads();
+		Gauge.builder(QUEUED_METRIC, workers.getQueue(), BlockingQueue::size)
+				.description("Tenant initializations waiting for a worker").register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void stop() {
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Queues the initialization of a tenant. A tenant whose initialization is
+	 * still queued or running is not queued a second time.
+	 *
+	 * @return false if the tenant is already initializing
+	 */
+	public boolean submit(String tenantId, Runnable initialization) {
+		long receivedAt = System.nanoTime();
+		if (initializing.putIfAbsent(tenantId, receivedAt) != null) {
+			log.info("Tenant {} is already initializing", tenantId);
+			return false;
+		}
+		try {
+			workers.execute(new InitTask(tenantId, priorityTenants.contains(tenantId), sequence.getAndIncrement(),
+					receivedAt, initialization));
+		} catch (RuntimeException e) {
+			initializing.remove(tenantId);
+			throw e;
+		}
+		return true;
+	}
+
+	/*
+	 * The initialization of the tenant opens its connections, the first
+	 * notification is expected from now on. Connections opened later, e.g.
+	 * reconnects, are not measured.
+	 */
+	public void onConnect(String tenantId) {
+		Long receivedAt = initializing.get(tenantId);
+		if (receivedAt != null) {
+			awaitingFirstNotification.putIfAbsent(tenantId, receivedAt);
+		}
+	}
+
+	/*
+	 * Called for every notification, only the first one per tenant after the
+	 * subscription event costs more than a map lookup.
+	 */
+	public void onNotification(String tenantId) {
+		if (awaitingFirstNotification.isEmpty()) {
+			return;
+		}
+		Long receivedAt = awaitingFirstNotification.remove(tenantId);
+		if (receivedAt != null) {
+			long elapsed = System.nanoTime() - receivedAt;
+			firstNotificationTimers.computeIfAbsent(tenantId, tenant -> Timer.builder(FIRST_NOTIFICATION_METRIC)
+					.description("Time from the subscription event to the first notification").tag("tenant", tenant)
+					.register(meterRegistry)).record(elapsed, TimeUnit.NANOSECONDS);
+			log.info("First notification of tenant {} after {} ms", tenantId, TimeUnit.NANOSECONDS.toMillis(elapsed));
+		}
+	}
+
+	/*
+	 * Tenant unsubscribed, there will be no first notification. Its timer is
+	 * dropped as well.
+	 */
+	public void forget(String tenantId) {
+		awaitingFirstNotification.remove(tenantId);
+		Timer timer = firstNotificationTimers.remove(tenantId);
+		if (timer != null) {
+			meterRegistry.remove(timer);
+		}
+	}
+
+	public int getQueued() {
+		return workers.getQueue().size();
+	}
+
+	private void run(InitTask task) {
+		long start = System.nanoTime();
+		try {
+			awaitSlot();
+			log.info("Initializing tenant {} ({} queued, waited {} ms)", task.tenantId, getQueued(),
+					TimeUnit.NANOSECONDS.toMillis(start - task.receivedAt));
+			task.initialization.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.error("Initialization of tenant {} failed: {}", task.tenantId, e.getMessage());
+		} finally {
+			initializing.remove(task.tenantId);
+			Timer.builder(INIT_METRIC).description("Tenant initialization including the wait for a slot")
+					.register(meterRegistry).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/*
+	 * Every initialization reserves the next free start time, staggerNanos after
+	 * the previous one, and sleeps until then.
+	 */
+	private void awaitSlot() throws InterruptedException {
+		if (staggerNanos == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		long slot = nextSlot.getAndUpdate(next -> Math.max(next, now) + staggerNanos);
+		long wait = Math.max(slot, now) - now;
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/*
+	 * Priority tenants first, otherwise in the order of submission.
+	 */
+	private class InitTask implements Runnable, Comparable<InitTask> {
+		private final String tenantId;
+		private final boolean priority;
+		private final long sequence;
+		private final long receivedAt;
+		private final Runnable initialization;
+
+		InitTask(String tenantId, boolean priority, long sequence, long receivedAt, Runnable initialization) {
+			this.tenantId = tenantId;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.receivedAt = receivedAt;
+			this.initialization = initialization;
+		}
+
+		@Override
+		public void run() {
+			TenantStartupCoordinator.this.run(this);
+		}
+
+		@Override
+		public int compareTo(InitTask other) {
+			if (priority != other.priority) {
+				return priority ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "tenant-startup-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package com.c8y.notification.spool;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.handler.NotificationHandlerRegistry;
+import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.NotificationCallback;
+import com.c8y.notification.websocket.NotificationDispatcher;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local write-ahead spool between the websocket and the handlers
+ * (notification.spool.enabled).
+ *
+ * The websocket thread appends the message to a memory mapped segment. Every
+ * notification.spool.syncIntervalMillis the written segments are forced to
+ * disk and only then the acknowledgements of the appended notifications are
+ * sent, so the platform never forgets a notification that is not on disk. A
+ * slow handler no longer slows down the subscription, it only increases the
+ * local lag (notification.spool.lag).
+ *
+ * A reader thread takes the records in order and hands them to the
+ * {@link NotificationDispatcher}. A record keeps the tenant, subscription and
+ * consumer of the message, the handlers see the same consumer as without
+ * spool. The lowest offset that is not handled yet is the checkpoint, it is
+ * written to disk with every sync. After a crash all
+ * records from the checkpoint on are handled again (at-least-once). A handler
+ * that fails is retried after notification.spool.retryDelaySeconds, the
+ * platform will not redeliver it. After notification.spool.maxRetries the
+ * notification is written to the dead-letter directory of the spool and
+ * skipped, otherwise it would hold the checkpoint forever.
+ *
+ * Segments behind the checkpoint are deleted after
+ * notification.spool.retentionMinutes.
+ */
+@Component
+@Slf4j
+public class NotificationSpool {
+
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String DEAD_LETTER_DIRECTORY = "dead-letter";
+	private static final long READ_WAIT_MILLIS = 100;
+
+	private final Properties properties;
+	private final NotificationDispatcher dispatcher;
+	private final NotificationHandlerRegistry handlerRegistry;
+	private final MeterRegistry meterRegistry;
+	private final TreeMap<Long, SpoolSegment> segments = new TreeMap<>();
+	// segments written since the last sync and the acks waiting for it
+	private final Set<SpoolSegment> dirty = new LinkedHashSet<>();
+	private List<Runnable> pendingAcks = new ArrayList<>();
+	// offsets handed to the dispatcher and not handled yet
+	private final NavigableSet<Long> inFlight = new ConcurrentSkipListSet<>();
+	private Path directory;
+	private SpoolSegment active;
+	private volatile long readOffset;
+	private long persistedCheckpoint = -1;
+	private volatile boolean running;
+	private Thread reader;
+	private ScheduledExecutorService scheduler;
+	private ScheduledExecutorService retryScheduler;
+	private Counter deadLetters;
+
+	@Autowired
+	public NotificationSpool(Properties properties, NotificationDispatcher dispatcher,
+			NotificationHandlerRegistry handlerRegistry, MeterRegistry meterRegistry) {
+		this.properties = properties;
+		this.dispatcher = dispatcher;
+		this.handlerRegistry = handlerRegistry;
+		this.meterRegistry = meterRegistry;
+	}
+
+	public boolean isEnabled() {
+		return properties.isSpoolEnabled();
+	}
+
+	@PostConstruct
+	public void start() throws IOException {
+		if (!isEnabled()) {
+			return;
+		}
+		directory = Paths.get(properties.getSpoolDirectory());
+		Files.createDirectories(directory);
+		recover();
+		log.info("Notification spool in {}, {} segments, replaying from offset {} up to {}", directory,
+				segments.size(), readOffset, active.getEndOffset());
+
+		Gauge.builder("notification.spool.lag", this, NotificationSpool::getLag)
+				.description("Bytes in the spool that are not handled yet").register(meterRegistry);
+		Gauge.builder("notification.spool.inflight", inFlight, Set::size)
+				.description("Spooled notifications handed to the dispatcher").register(meterRegistry);
+		deadLetters = Counter.builder("notification.spool.deadLetters")
+				.description("Spooled notifications given up after notification.spool.maxRetries")
+				.register(meterRegistry);
+
+		running = true;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "notification-spool-sync");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::sync, properties.getSpoolSyncIntervalMillis(),
+				properties.getSpoolSyncIntervalMillis(), TimeUnit.MILLISECONDS);
+		/* retries may block on a full dispatcher lane, keep them off the sync thread */
+		retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "notification-spool-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reader = new Thread(this::read, "notification-spool-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@PreDestroy
+	public void stop() throws IOException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		reader.interrupt();
+		retryScheduler.shutdownNow();
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sync();
+		synchronized (this) {
+			for (SpoolSegment segment : segments.values()) {
+				segment.close();
+			}
+		}
+		log.info("Notification spool stopped at checkpoint {}", checkpoint());
+	}
+
+	/**
+	 * Append a notification. Called on the websocket thread, the ack is run once
+	 * the notification is on disk.
+	 *
+	 * @return false if the notification could not be written, it is not
+	 *         acknowledged then
+	 */
+	public boolean append(String tenantId, String subscription, String consumer, String message, Runnable ack) {
+		byte[] payload = encode(tenantId, subscription, consumer, message);
+		synchronized (this) {
+			try {
+				if (active.append(payload) < 0) {
+					roll(payload.length);
+					active.append(payload);
+				}
+			} catch (IOException e) {
+				log.error("Unable to append notification to the spool: {}", e.getMessage());
+				return false;
+			}
+			dirty.add(active);
+			pendingAcks.add(ack);
+			notifyAll();
+		}
+		return true;
+	}
+
+	public long getLag() {
+		long end;
+		synchronized (this) {
+			end = active.getEndOffset();
+		}
+		return end - checkpoint();
+	}
+
+	private void roll(int payloadLength) throws IOException {
+		int size = Math.max(properties.getSpoolSegmentSizeMB() * 1024 * 1024,
+				SpoolSegment.RECORD_HEADER + payloadLength);
+		SpoolSegment next = SpoolSegment.create(directory, active.getEndOffset(), size);
+		segments.put(next.getBaseOffset(), next);
+		log.info("Spool segment {} started", next.getFile().getFileName());
+		active = next;
+	}
+
+	private void recover() throws IOException {
+		List<Path> files;
+		try (Stream<Path> list = Files.list(directory)) {
+			files = list.filter(f -> f.getFileName().toString().endsWith(SpoolSegment.SUFFIX)).sorted()
+					.collect(Collectors.toList());
+		}
+		for (Path file : files) {
+			SpoolSegment segment = SpoolSegment.open(file);
+			segments.put(segment.getBaseOffset(), segment);
+		}
+		if (segments.isEmpty()) {
+			SpoolSegment first = SpoolSegment.create(directory, 0, properties.getSpoolSegmentSizeMB() * 1024 * 1024);
+			segments.put(0L, first);
+		}
+		active = segments.lastEntry().getValue();
+
+		long checkpoint = segments.firstKey();
+		Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+		if (Files.exists(checkpointFile)) {
+			checkpoint = Long.parseLong(Files.readString(checkpointFile).trim());
+		}
+		readOffset = Math.max(segments.firstKey(), Math.min(checkpoint, active.getEndOffset()));
+		persistedCheckpoint = readOffset;
+	}
+
+	/*
+	 * Reader thread: hands the records to the dispatcher in order, at most
+	 * notification.spool.maxInFlight at a time.
+	 */
+	private void read() {
+		while (running) {
+			try {
+				if (inFlight.size() >= properties.getSpoolMaxInFlight()) {
+					Thread.sleep(10);
+					continue;
+				}
+				long offset = readOffset;
+				byte[] payload = next(offset);
+				if (payload == null) {
+					continue;
+				}
+				inFlight.add(offset);
+				readOffset = offset + SpoolSegment.RECORD_HEADER + payload.length;
+				dispatch(offset, payload);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				log.error("Error in spool reader: {}", e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * The record at the offset, waits a bit for the next append if there is none
+	 * yet.
+	 */
+	private synchronized byte[] next(long offset) throws InterruptedException {
+		Map.Entry<Long, SpoolSegment> entry = segments.floorEntry(offset);
+		byte[] payload = entry == null ? null : entry.getValue().read((int) (offset - entry.getKey()));
+		if (payload != null) {
+			return payload;
+		}
+		/*
+		 * the tail of a segment can get lost in a crash before it was synced,
+		 * continue with the next segment
+		 */
+		Map.Entry<Long, SpoolSegment> next = segments.higherEntry(offset);
+		if (next != null && (entry == null || offset >= entry.getValue().getEndOffset())) {
+			log.warn("Spool records from offset {} to {} were lost, continuing with the next segment", offset,
+					next.getKey());
+			readOffset = next.getKey();
+			return null;
+		}
+		wait(READ_WAIT_MILLIS);
+		return null;
+	}
+
+	private void dispatch(long offset, byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		String tenantId = readString(buffer);
+		String subscription = readString(buffer);
+		String consumer = readString(buffer);
+		String message = new String(payload, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+		dispatch(offset, new SpooledCallback(offset, subscription, consumer, message), tenantId);
+	}
+
+	private void dispatch(long offset, SpooledCallback callback, String tenantId) {
+		dispatcher.dispatch(tenantId, Notification.parse(callback.message), callback, () -> inFlight.remove(offset));
+	}
+
+	/*
+	 * Force the written segments to disk, then acknowledge what was appended
+	 * before. Runs on the sync thread.
+	 */
+	private void sync() {
+		List<SpoolSegment> written;
+		List<Runnable> acks;
+		synchronized (this) {
+			written = new ArrayList<>(dirty);
+			dirty.clear();
+			acks = pendingAcks;
+			pendingAcks = new ArrayList<>();
+		}
+		try {
+			for (SpoolSegment segment : written) {
+				segment.force();
+			}
+		} catch (RuntimeException e) {
+			log.error("Unable to sync the spool, {} notifications will be redelivered: {}", acks.size(),
+					e.getMessage());
+			return;
+		}
+		for (Runnable ack : acks) {
+			ack.run();
+		}
+		try {
+			persistCheckpoint();
+			deleteConsumedSegments();
+		} catch (IOException e) {
+			log.error("Unable to write spool checkpoint: {}", e.getMessage());
+		}
+	}
+
+	private long checkpoint() {
+		long read = readOffset;
+		Iterator<Long> pending = inFlight.iterator();
+		return pending.hasNext() ? Math.min(pending.next(), read) : read;
+	}
+
+	private void persistCheckpoint() throws IOException {
+		long checkpoint = checkpoint();
+		if (checkpoint == persistedCheckpoint) {
+			return;
+		}
+		Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+		Files.writeString(tmp, Long.toString(checkpoint));
+		Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		persistedCheckpoint = checkpoint;
+	}
+
+	private synchronized void deleteConsumedSegments() throws IOException {
+		long checkpoint = persistedCheckpoint;
+		long now = System.currentTimeMillis();
+		long retention = TimeUnit.MINUTES.toMillis(properties.getSpoolRetentionMinutes());
+		Iterator<SpoolSegment> it = segments.values().iterator();
+		while (it.hasNext()) {
+			SpoolSegment segment = it.next();
+			if (segment == active || segment.getEndOffset() > checkpoint) {
+				return;
+			}
+			if (segment.getConsumedAt() == 0) {
+				segment.setConsumedAt(now);
+			}
+			if (now - segment.getConsumedAt() >= retention) {
+				log.info("Deleting consumed spool segment {}", segment.getFile().getFileName());
+				it.remove();
+				segment.delete();
+			}
+		}
+	}
+
+	/*
+	 * tenant, subscription and consumer each with a two byte length, then the
+	 * message
+	 */
+	private static byte[] encode(String tenantId, String subscription, String consumer, String message) {
+		byte[] tenant = tenantId.getBytes(StandardCharsets.UTF_8);
+		byte[] subscriptionName = subscription.getBytes(StandardCharsets.UTF_8);
+		byte[] consumerName = consumer.getBytes(StandardCharsets.UTF_8);
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(6 + tenant.length + subscriptionName.length + consumerName.length + body.length)
+				.putShort((short) tenant.length).put(tenant).putShort((short) subscriptionName.length)
+				.put(subscriptionName).putShort((short) consumerName.length).put(consumerName).put(body).array();
+	}
+
+	/*
+	 * One file per notification, named by its offset: tenant, subscription and
+	 * consumer on a line each, then the message. The notification is skipped even
+	 * if it can not be written, it is logged then.
+	 */
+	private void deadLetter(long offset, String tenantId, String subscription, String consumer, String message) {
+		deadLetters.increment();
+		try {
+			Path deadLetterDirectory = Files.createDirectories(directory.resolve(DEAD_LETTER_DIRECTORY));
+			Files.writeString(deadLetterDirectory.resolve(String.format("%020d", offset)),
+					tenantId + "\n" + subscription + "\n" + consumer + "\n" + message, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			log.error("Spooled notification {} of tenant {} failed {} times, moved to the dead-letter directory",
+					offset, tenantId, properties.getSpoolMaxRetries() + 1);
+		} catch (IOException e) {
+			log.error("Spooled notification {} of tenant {} failed {} times and is skipped ({}): {}", offset,
+					tenantId, properties.getSpoolMaxRetries() + 1, e.getMessage(), message);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] value = new byte[buffer.getShort()];
+		buffer.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * The platform already got the ack, a failed handler is retried locally. The
+	 * exception is rethrown so the dispatcher does not mark the record as handled.
+	 * The last failure is not rethrown, the record counts as handled once it is
+	 * in the dead-letter directory.
+	 */
+	private class SpooledCallback implements NotificationCallback {
+		private final long offset;
+		private final String subscription;
+		private final String consumer;
+		private final String message;
+		// only one attempt runs at a time
+		private int retries;
+
+		private SpooledCallback(long offset, String subscription, String consumer, String message) {
+			this.offset = offset;
+			this.subscription = subscription;
+			this.consumer = consumer;
+			this.message = message;
+		}
+
+		@Override
+		public void onNotification(String tenantId, Notification notification) {
+			try {
+				handlerRegistry.handle(tenantId, subscription, consumer, notification);
+			} catch (RuntimeException e) {
+				if (retries >= properties.getSpoolMaxRetries()) {
+					deadLetter(offset, tenantId, subscription, consumer, message);
+					return;
+				}
+				retries++;
+				if (running) {
+					retryScheduler.schedule(() -> dispatch(offset, this, tenantId),
+							properties.getSpoolRetryDelaySeconds(), TimeUnit.SECONDS);
+				}
+				throw e;
+			}
+		}
+
+		@Override
+		public void onOpen(String tenantId, URI serverUri) {
+		}
+
+		@Override
+		public void onError(String tenantId, Throwable t) {
+		}
+
+		@Override
+		public void onClose(String tenantId) {
+		}
+	}
+}
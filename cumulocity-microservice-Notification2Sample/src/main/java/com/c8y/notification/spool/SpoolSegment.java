@@ -0,0 +1,153 @@
+package com.c8y.notification.spool;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * One memory mapped file of the spool. Records are appended one after the
+ * other:
+ *
+ * <pre>
+ * [int length][int crc32 of payload][payload]
+ * </pre>
+ *
+ * The length is written last, a record that was not completely written before
+ * a crash has length 0 or a wrong checksum and ends the segment on recovery.
+ *
+ * The file name is the spool offset of its first record, offsets are
+ * continuous over all segments. Not thread safe, guarded by the spool.
+ */
+class SpoolSegment {
+
+	static final String SUFFIX = ".spool";
+	static final int RECORD_HEADER = 8;
+
+	private final long baseOffset;
+	private final Path file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private int writePosition;
+	// when the checkpoint passed the end of the segment, 0 while not consumed
+	private long consumedAt;
+
+	private SpoolSegment(long baseOffset, Path file, FileChannel channel, MappedByteBuffer buffer,
+			int writePosition) {
+		this.baseOffset = baseOffset;
+		this.file = file;
+		this.channel = channel;
+		this.buffer = buffer;
+		this.writePosition = writePosition;
+	}
+
+	static SpoolSegment create(Path directory, long baseOffset, int size) throws IOException {
+		Path file = directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		return new SpoolSegment(baseOffset, file, channel, channel.map(MapMode.READ_WRITE, 0, size), 0);
+	}
+
+	/*
+	 * Opens an existing segment and finds the end of the last complete record.
+	 * Whatever follows is cleared so it can not be mistaken for a record later.
+	 */
+	static SpoolSegment open(Path file) throws IOException {
+		String name = file.getFileName().toString();
+		long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, channel.size());
+		int position = 0;
+		while (readPayload(buffer, position) != null) {
+			position += RECORD_HEADER + buffer.getInt(position);
+		}
+		for (int i = position; i < buffer.capacity(); i++) {
+			buffer.put(i, (byte) 0);
+		}
+		return new SpoolSegment(baseOffset, file, channel, buffer, position);
+	}
+
+	/**
+	 * @return the position of the record in the segment, -1 if it does not fit
+	 */
+	int append(byte[] payload) {
+		int position = writePosition;
+		if (position + RECORD_HEADER + payload.length > buffer.capacity()) {
+			return -1;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		buffer.putInt(position + 4, (int) crc.getValue());
+		buffer.put(position + RECORD_HEADER, payload);
+		buffer.putInt(position, payload.length);
+		writePosition = position + RECORD_HEADER + payload.length;
+		return position;
+	}
+
+	/**
+	 * @return the payload of the record at the position, null if there is none
+	 *         (yet)
+	 */
+	byte[] read(int position) {
+		if (position >= writePosition) {
+			return null;
+		}
+		return readPayload(buffer, position);
+	}
+
+	private static byte[] readPayload(MappedByteBuffer buffer, int position) {
+		if (position + RECORD_HEADER > buffer.capacity()) {
+			return null;
+		}
+		int length = buffer.getInt(position);
+		if (length <= 0 || position + RECORD_HEADER + length > buffer.capacity()) {
+			return null;
+		}
+		byte[] payload = new byte[length];
+		buffer.get(position + RECORD_HEADER, payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+			return null;
+		}
+		return payload;
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	void delete() throws IOException {
+		close();
+		Files.deleteIfExists(file);
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	/* offset behind the last record, the base offset of the next segment */
+	long getEndOffset() {
+		return baseOffset + writePosition;
+	}
+
+	long getConsumedAt() {
+		return consumedAt;
+	}
+
+	void setConsumedAt(long consumedAt) {
+		this.consumedAt = consumedAt;
+	}
+
+	Path getFile() {
+		return file;
+	}
+}
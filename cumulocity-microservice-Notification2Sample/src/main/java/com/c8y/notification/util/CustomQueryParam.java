@@ -9,7 +9,7 @@ import lombok.Getter;
 public enum CustomQueryParam implements Param {
 	WITH_CHILDREN("withChildren"), WITH_PARENTS("withParents"), WITH_TOTAL_PAGES("withTotalPages"),
 	PAGE_SIZE("pageSize"), QUERY("query"), DEVICE_QUERY("q"), DATE_FROM("dateFrom"), STATUS("status"),
-	FRAGMENT_TYPE("fragmentType"), DEVICE_ID("deviceId"), REVERT("revert"),;
+	FRAGMENT_TYPE("fragmentType"), DEVICE_ID("deviceId"), REVERT("revert"), SKIP_CHILDREN_NAMES("skipChildrenNames"),;
 
 	private String name;
 	@Getter
@@ -0,0 +1,57 @@
+package com.c8y.notification.util;
+
+/**
+ * Jump consistent hash (Lamping, Veach 2014): maps a key to one of n buckets,
+ * no table needed. Going from n to n + 1 buckets only moves the keys that end
+ * up in the new bucket, about 1 / (n + 1) of them, no key moves between the
+ * existing buckets.
+ */
+public final class JumpHash {
+
+	private JumpHash() {
+	}
+
+	public static int bucket(long key, int buckets) {
+		if (buckets <= 0) {
+			throw new IllegalArgumentException("buckets must be positive: " + buckets);
+		}
+		long b = -1;
+		long j = 0;
+		while (j < buckets) {
+			b = j;
+			key = key * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+
+	/*
+	 * Managed object ids are numbers, mostly sequential. They are mixed first so
+	 * neighbouring ids do not start from neighbouring generator states.
+	 */
+	public static int bucket(String id, int buckets) {
+		return bucket(mix(keyOf(id)), buckets);
+	}
+
+	private static long keyOf(String id) {
+		try {
+			return Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			// FNV-1a for ids that are not numeric
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < id.length(); i++) {
+				hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+			}
+			return hash;
+		}
+	}
+
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,124 @@
+package com.c8y.notification.util;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive longs with open addressing and linear probing, no boxing
+ * and no entry objects. The table has a fixed size, {@link #add} fails once
+ * the set holds {@link #capacity()} keys.
+ *
+ * Not thread safe.
+ */
+public class LongHashSet {
+
+	// 0 marks a free slot, the key 0 is stored as ZERO_KEY
+	private static final long ZERO_KEY = 0x9E3779B97F4A7C15L;
+
+	private final long[] table;
+	private final int mask;
+	private final int capacity;
+	private int size;
+
+	/**
+	 * @param capacity number of keys the set can hold, the table is kept at most
+	 *                 half full
+	 */
+	public LongHashSet(int capacity) {
+		int slots = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+		this.table = new long[slots];
+		this.mask = slots - 1;
+		this.capacity = slots / 2;
+	}
+
+	public boolean contains(long key) {
+		key = key == 0 ? ZERO_KEY : key;
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long current = table[i];
+			if (current == 0) {
+				return false;
+			}
+			if (current == key) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return false if the key was already present
+	 * @throws IllegalStateException if the set is full
+	 */
+	public boolean add(long key) {
+		key = key == 0 ? ZERO_KEY : key;
+		int i = slot(key);
+		for (;; i = (i + 1) & mask) {
+			long current = table[i];
+			if (current == 0) {
+				break;
+			}
+			if (current == key) {
+				return false;
+			}
+		}
+		if (size == capacity) {
+			throw new IllegalStateException("LongHashSet is full (" + capacity + " keys)");
+		}
+		table[i] = key;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Removes the key and moves the following keys of the probe sequence back, so
+	 * no tombstones are needed.
+	 */
+	public boolean remove(long key) {
+		key = key == 0 ? ZERO_KEY : key;
+		int i = slot(key);
+		for (;; i = (i + 1) & mask) {
+			long current = table[i];
+			if (current == 0) {
+				return false;
+			}
+			if (current == key) {
+				break;
+			}
+		}
+		int free = i;
+		for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+			int home = slot(table[j]);
+			// move back unless the home slot lies cyclically in (free, j]
+			if (free <= j ? (home <= free || home > j) : (home <= free && home > j)) {
+				table[free] = table[j];
+				free = j;
+			}
+		}
+		table[free] = 0;
+		size--;
+		return true;
+	}
+
+	public void clear() {
+		Arrays.fill(table, 0);
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	private int slot(long key) {
+		// murmur3 finalizer, ids hashed by the caller may still be clustered
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+}
@@ -0,0 +1,143 @@
+package com.c8y.notification.util;
+
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import com.c8y.notification.model.MeasurementValue;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes a measurement notification body straight from the Jackson token
+ * stream into {@link MeasurementValue}s.
+ *
+ * Every object property that contains series objects with a numeric "value" is
+ * a fragment, e.g.
+ * {"c8y_Temperature":{"T":{"value":21.5,"unit":"C"}}}. Other properties are
+ * skipped without building a tree or map for them. Source and time may appear
+ * anywhere in the measurement, the values are emitted once the measurement
+ * object is complete.
+ *
+ * The decoder has no state and can be shared between threads.
+ */
+public class MeasurementDecoder {
+
+	/**
+	 * @param parser parser positioned before the measurement object, e.g. from
+	 *               Notification.getBodyParser. It is not closed, that is up to
+	 *               the caller.
+	 * @return number of values passed to the sink
+	 */
+	public int decode(JsonParser parser, Consumer<MeasurementValue> sink) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			return 0;
+		}
+		String sourceId = null;
+		long time = 0;
+		Series series = new Series();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("time".equals(field) && token == JsonToken.VALUE_STRING) {
+				time = parseTime(parser);
+			} else if ("source".equals(field) && token == JsonToken.START_OBJECT) {
+				sourceId = readSourceId(parser);
+			} else if (token == JsonToken.START_OBJECT) {
+				readFragment(parser, field, series);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		for (int i = 0; i < series.count; i++) {
+			sink.accept(new MeasurementValue(sourceId, series.fragments[i], series.names[i], series.values[i],
+					series.units[i], time));
+		}
+		return series.count;
+	}
+
+	private String readSourceId(JsonParser parser) throws IOException {
+		String id = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if ("id".equals(field)) {
+				id = parser.getValueAsString();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return id;
+	}
+
+	private void readFragment(JsonParser parser, String fragment, Series series) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			if (parser.nextToken() == JsonToken.START_OBJECT) {
+				readSeries(parser, fragment, name, series);
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private void readSeries(JsonParser parser, String fragment, String name, Series series) throws IOException {
+		boolean hasValue = false;
+		double value = 0;
+		String unit = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("value".equals(field) && token.isNumeric()) {
+				value = parser.getDoubleValue();
+				hasValue = true;
+			} else if ("unit".equals(field) && token == JsonToken.VALUE_STRING) {
+				unit = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (hasValue) {
+			series.add(fragment, name, value, unit);
+		}
+	}
+
+	private long parseTime(JsonParser parser) throws IOException {
+		String text = parser.getText();
+		try {
+			return DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(text, Instant::from).toEpochMilli();
+		} catch (DateTimeException e) {
+			throw new JsonParseException(parser, "Invalid measurement time: " + text, e);
+		}
+	}
+
+	/*
+	 * The series of one measurement until source and time are known, as parallel
+	 * arrays instead of one object per series.
+	 */
+	private static final class Series {
+		private String[] fragments = new String[4];
+		private String[] names = new String[4];
+		private String[] units = new String[4];
+		private double[] values = new double[4];
+		private int count;
+
+		void add(String fragment, String name, double value, String unit) {
+			if (count == values.length) {
+				fragments = Arrays.copyOf(fragments, count * 2);
+				names = Arrays.copyOf(names, count * 2);
+				units = Arrays.copyOf(units, count * 2);
+				values = Arrays.copyOf(values, count * 2);
+			}
+			fragments[count] = fragment;
+			names[count] = name;
+			units[count] = unit;
+			values[count] = value;
+			count++;
+		}
+	}
+}
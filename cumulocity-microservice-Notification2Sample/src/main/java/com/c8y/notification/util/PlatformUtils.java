@@ -1,15 +1,24 @@
 package com.c8y.notification.util;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Iterator;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.c8y.notification.Properties;
 import com.cumulocity.microservice.context.ContextService;
 import com.cumulocity.microservice.context.credentials.MicroserviceCredentials;
 import com.cumulocity.microservice.subscription.model.core.PlatformProperties;
 import com.cumulocity.microservice.subscription.repository.application.ApplicationApi;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
 import com.cumulocity.rest.representation.CumulocityMediaType;
 import com.cumulocity.rest.representation.application.ApplicationRepresentation;
 import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
@@ -23,9 +32,14 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.extern.slf4j.Slf4j;
 
 /*
- * 
+ *
  * This class makes a call to the /tenant/currentTenant endpoint.
  * It then extracts the tenant host name. This is required for the websocket connection.
+ *
+ * The host name, the application id and the application managed object id are
+ * cached per tenant for notification.platform.cacheTtlMinutes and refreshed in
+ * the background, see TenantCache. Only the first lookup of a tenant calls the
+ * platform on the caller's thread.
  */
 @Service
 @Slf4j
@@ -44,18 +58,62 @@ public class PlatformUtils {
 	@Autowired
 	private Platform platform;
 
-	public String host;
+	@Autowired
+	private MicroserviceSubscriptionsService subscriptionsService;
+
 	private ObjectMapper objectMapper = new ObjectMapper();
 	private static final String DOMAIN_NAME_FRAGMENT = "domainName";
+	// the application is the same for all tenants, it is read with the bootstrap user
+	private static final String BOOTSTRAP_KEY = "bootstrap";
+	private static final String WEBSOCKET_URL_PATTERN = "%s/notification2/consumer/?token=%s";
+	private static final String SHARED_WEBSOCKET_URL_PATTERN = "%s/notification2/consumer/?token=%s&consumer=%s";
+
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "platform-cache-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final TenantCache<String> hosts;
+	private final TenantCache<String> applicationIds;
+	private final TenantCache<String> applicationMOIds;
+
+	@Autowired
+	public PlatformUtils(Properties properties) {
+		long ttlMillis = TimeUnit.MINUTES.toMillis(properties.getPlatformCacheTtlMinutes());
+		this.hosts = new TenantCache<>("host", ttlMillis, refresher,
+				tenantId -> subscriptionsService.callForTenant(tenantId, this::resolveHost));
+		this.applicationIds = new TenantCache<>("application id", ttlMillis, refresher,
+				key -> Optional.ofNullable(getCurrentApplication()).map(ApplicationRepresentation::getId));
+		this.applicationMOIds = new TenantCache<>("application managed object id", ttlMillis, refresher,
+				tenantId -> applicationIds.get(BOOTSTRAP_KEY)
+						.flatMap(appId -> subscriptionsService.callForTenant(tenantId,
+								() -> Optional.ofNullable(getAppMO(appId))))
+						.map(mo -> mo.getId().getValue()));
+	}
 
+	@PreDestroy
+	public void stop() {
+		refresher.shutdownNow();
+	}
+
+	/*
+	 * Managed object id of the microservice in the current tenant.
+	 */
 	public Optional<String> getMicroserviceMOId() {
-		ApplicationRepresentation applicationObj = getCurrentApplication();
-		ManagedObjectRepresentation applicationMO = getAppMO(applicationObj.getId());
+		return getMicroserviceMOId(subscriptionsService.getTenant());
+	}
 
-		if (applicationMO == null) {
-			return Optional.empty();
-		}
-		return Optional.of(applicationMO.getId().getValue());
+	public Optional<String> getMicroserviceMOId(String tenantId) {
+		return applicationMOIds.get(tenantId);
+	}
+
+	/**
+	 * Never calls the platform, for callers on socket threads. Empty until the
+	 * first lookup of the tenant completed, that lookup is started in the
+	 * background.
+	 */
+	public Optional<String> getCachedMicroserviceMOId(String tenantId) {
+		return applicationMOIds.getNow(tenantId);
 	}
 
 	public ApplicationRepresentation getCurrentApplication() {
@@ -67,7 +125,7 @@ public class PlatformUtils {
 
 	/**
 	 * function to get the managed object representing the current micorservice
-	 * 
+	 *
 	 * @param appId
 	 * @return managed object for application
 	 */
@@ -84,22 +142,71 @@ public class PlatformUtils {
 		return mo;
 	}
 
+	/*
+	 * Domain name of the current tenant.
+	 */
 	public Optional<String> getHost() {
-		if (this.host == null || this.host.isEmpty()) {
-			log.info("Resolving domain name...");
-			Optional<String> tenantStats = getCurrentTenantInfo();
-			if (tenantStats.isPresent()) {
-				try {
-					ObjectNode node = objectMapper.readValue(tenantStats.get(), ObjectNode.class);
-					host = node.get(DOMAIN_NAME_FRAGMENT).asText();
-				} catch (Exception e) {
-					return Optional.empty();
-				}
-			} else {
-				log.error("Could not resolve tenant host");
+		return getHost(subscriptionsService.getTenant());
+	}
+
+	public Optional<String> getHost(String tenantId) {
+		return hosts.get(tenantId);
+	}
+
+	/*
+	 * Never calls the platform, see getCachedMicroserviceMOId.
+	 */
+	public Optional<String> getCachedHost(String tenantId) {
+		return hosts.getNow(tenantId);
+	}
+
+	public URI getWebSocketUrl(String token, String tenantId) throws URISyntaxException {
+		return new URI(String.format(WEBSOCKET_URL_PATTERN, getWebSocketHost(tenantId), token));
+	}
+
+	/*
+	 * Shared tokens require a consumer name, it identifies the connection within
+	 * the shared subscriber.
+	 */
+	public URI getWebSocketUrl(String token, String tenantId, String consumer) throws URISyntaxException {
+		if (consumer == null) {
+			return getWebSocketUrl(token, tenantId);
+		}
+		return new URI(String.format(SHARED_WEBSOCKET_URL_PATTERN, getWebSocketHost(tenantId), token,
+				consumer));
+	}
+
+	/*
+	 * e.g. wss://psfactory.eu-latest.cumulocity.com:443, from the host cache that
+	 * the tenant initialization loaded.
+	 */
+	private String getWebSocketHost(String tenantId) throws URISyntaxException {
+		String host = getCachedHost(tenantId)
+				.orElseThrow(() -> new URISyntaxException(tenantId, "Host of the tenant is not resolved yet"));
+		return "wss://" + host + ":443";
+	}
+
+	/*
+	 * Forget the values of a tenant that unsubscribed.
+	 */
+	public void evict(String tenantId) {
+		hosts.evict(tenantId);
+		applicationMOIds.evict(tenantId);
+	}
+
+	private Optional<String> resolveHost() {
+		log.info("Resolving domain name...");
+		Optional<String> tenantStats = getCurrentTenantInfo();
+		if (tenantStats.isPresent()) {
+			try {
+				ObjectNode node = objectMapper.readValue(tenantStats.get(), ObjectNode.class);
+				return Optional.of(node.get(DOMAIN_NAME_FRAGMENT).asText());
+			} catch (Exception e) {
+				return Optional.empty();
 			}
 		}
-		return Optional.of(this.host);
+		log.error("Could not resolve tenant host");
+		return Optional.empty();
 	}
 
 	public Optional<String> getCurrentTenantInfo() {
@@ -121,4 +228,4 @@ public class PlatformUtils {
 	 * e) { log.error("Tenant#getCurrentTenant operation resulted in " +
 	 * e.getMessage(), e); } return Optional.empty(); }
 	 */
-}
\ No newline at end of file
+}
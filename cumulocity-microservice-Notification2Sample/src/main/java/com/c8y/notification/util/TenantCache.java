@@ -0,0 +1,134 @@
+package com.c8y.notification.util;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Values looked up on the platform per tenant, e.g. the domain name.
+ *
+ * A value is loaded once and kept. After the time to live it is still returned
+ * while a single background load replaces it, callers never wait for a
+ * refresh. A failed refresh keeps the old value and is retried after
+ * RETRY_MILLIS. Empty results are not cached.
+ *
+ * The loader has to set up the tenant context itself, it runs on the caller's
+ * thread or on the refresh executor.
+ */
+@Slf4j
+public class TenantCache<V> {
+
+	private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private final String name;
+	private final long ttlMillis;
+	private final Executor refresher;
+	private final Function<String, Optional<V>> loader;
+	private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+	// tenants without a value whose first load runs in the background
+	private final Map<String, Boolean> loading = new ConcurrentHashMap<>();
+
+	public TenantCache(String name, long ttlMillis, Executor refresher, Function<String, Optional<V>> loader) {
+		this.name = name;
+		this.ttlMillis = ttlMillis;
+		this.refresher = refresher;
+		this.loader = loader;
+	}
+
+	/**
+	 * Returns the cached value, loads it on the calling thread only if the tenant
+	 * has none yet.
+	 */
+	public Optional<V> get(String tenantId) {
+		Entry<V> entry = entries.get(tenantId);
+		if (entry == null) {
+			return load(tenantId);
+		}
+		refreshIfExpired(tenantId, entry);
+		return Optional.of(entry.value);
+	}
+
+	/**
+	 * Never blocks. Returns the cached value if there is one, a missing or
+	 * expired value is loaded in the background.
+	 */
+	public Optional<V> getNow(String tenantId) {
+		Entry<V> entry = entries.get(tenantId);
+		if (entry == null) {
+			if (loading.putIfAbsent(tenantId, Boolean.TRUE) == null) {
+				submit(tenantId, () -> {
+					try {
+						load(tenantId);
+					} catch (Exception e) {
+						log.warn("Unable to load {} for tenant {}: {}", name, tenantId, e.getMessage());
+					} finally {
+						loading.remove(tenantId);
+					}
+				}, () -> loading.remove(tenantId));
+			}
+			return Optional.empty();
+		}
+		refreshIfExpired(tenantId, entry);
+		return Optional.of(entry.value);
+	}
+
+	public void evict(String tenantId) {
+		entries.remove(tenantId);
+	}
+
+	private Optional<V> load(String tenantId) {
+		Optional<V> value = loader.apply(tenantId);
+		value.ifPresent(v -> entries.put(tenantId, new Entry<>(v, System.currentTimeMillis() + ttlMillis)));
+		return value;
+	}
+
+	private void refreshIfExpired(String tenantId, Entry<V> entry) {
+		if (System.currentTimeMillis() < entry.expiresAt || !entry.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		submit(tenantId, () -> refresh(tenantId, entry), () -> entry.refreshing.set(false));
+	}
+
+	private void refresh(String tenantId, Entry<V> entry) {
+		try {
+			Optional<V> value = loader.apply(tenantId);
+			if (value.isPresent()) {
+				/* an evicted tenant is not added again */
+				entries.replace(tenantId, entry, new Entry<>(value.get(), System.currentTimeMillis() + ttlMillis));
+				return;
+			}
+			log.warn("Refresh of {} for tenant {} returned nothing, keeping the cached value", name, tenantId);
+		} catch (Exception e) {
+			log.warn("Refresh of {} for tenant {} failed, keeping the cached value: {}", name, tenantId,
+					e.getMessage());
+		}
+		entries.replace(tenantId, entry, new Entry<>(entry.value, System.currentTimeMillis() + RETRY_MILLIS));
+	}
+
+	private void submit(String tenantId, Runnable task, Runnable onRejected) {
+		try {
+			refresher.execute(task);
+		} catch (RejectedExecutionException e) {
+			log.warn("Unable to load {} for tenant {}: {}", name, tenantId, e.getMessage());
+			onRejected.run();
+		}
+	}
+
+	private static class Entry<V> {
+		private final V value;
+		private final long expiresAt;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
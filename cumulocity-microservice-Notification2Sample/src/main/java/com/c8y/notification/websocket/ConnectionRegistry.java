@@ -0,0 +1,66 @@
+package com.c8y.notification.websocket;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.c8y.notification.model.WebsocketConnection;
+
+/**
+ * The websocket connections of every tenant.
+ *
+ * Spring event threads, Jetty callbacks, the reconnect scheduler and the
+ * connection check all use it. The connections of a tenant are an immutable
+ * list, registered once and removed as a whole, so reads need no lock. The
+ * state of a single connection is changed by the CAS transitions of
+ * {@link WebsocketConnection}.
+ */
+public class ConnectionRegistry {
+
+	private final Map<String, List<WebsocketConnection>> connections = new ConcurrentHashMap<>();
+
+	/**
+	 * @return false if the tenant already has connections, nothing is registered
+	 *         then
+	 */
+	public boolean register(String tenantId, List<WebsocketConnection> tenantConnections) {
+		return connections.putIfAbsent(tenantId, List.copyOf(tenantConnections)) == null;
+	}
+
+	public List<WebsocketConnection> get(String tenantId) {
+		return connections.getOrDefault(tenantId, List.of());
+	}
+
+	public boolean contains(String tenantId) {
+		return connections.containsKey(tenantId);
+	}
+
+	/*
+	 * False once the connection was removed, a pending reconnect must not open it
+	 * again.
+	 */
+	public boolean isActive(String tenantId, WebsocketConnection connection) {
+		return !connection.isClosed() && get(tenantId).contains(connection);
+	}
+
+	public Set<String> getTenants() {
+		return connections.keySet();
+	}
+
+	/**
+	 * Removes the connections of the tenant and closes them.
+	 *
+	 * @return the removed connections, empty if there were none
+	 */
+	public List<WebsocketConnection> remove(String tenantId) {
+		List<WebsocketConnection> removed = connections.remove(tenantId);
+		if (removed == null) {
+			return List.of();
+		}
+		for (WebsocketConnection connection : removed) {
+			connection.close();
+		}
+		return removed;
+	}
+}
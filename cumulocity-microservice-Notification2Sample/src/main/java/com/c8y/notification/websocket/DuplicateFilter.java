@@ -0,0 +1,149 @@
+package com.c8y.notification.websocket;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.util.LongHashSet;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Remembers the notifications that were handled successfully, so that their
+ * redeliveries can be dropped, e.g. after a reconnect when the ack of the
+ * first delivery did not reach the platform. Only handled notifications are
+ * remembered, a failed one is handled again when it is redelivered.
+ *
+ * The identity of a notification is its ack header, hashed together with the
+ * tenant into a 64 bit key. Keys are kept in two generations of
+ * {@link LongHashSet}s per stripe: a key is remembered for at least
+ * notification.dedup.windowSeconds, unless more than
+ * notification.dedup.capacity notifications arrive within that window, then
+ * the oldest generation is dropped early. Memory is bounded by 2 * capacity
+ * longs.
+ *
+ * Disabled by default (notification.dedup.enabled).
+ */
+@Component
+@Slf4j
+public class DuplicateFilter {
+
+	private static final int STRIPES = 16;
+
+	private final boolean enabled;
+	private final long windowNanos;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final Counter hits;
+	private final Counter misses;
+
+	@Autowired
+	public DuplicateFilter(Properties properties, MeterRegistry meterRegistry) {
+		this.enabled = properties.isDedupEnabled();
+		this.windowNanos = TimeUnit.SECONDS.toNanos(properties.getDedupWindowSeconds());
+		int stripeCapacity = Math.max(1, properties.getDedupCapacity() / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(stripeCapacity);
+		}
+		this.hits = Counter.builder("notification.dedup.hits").description("Redelivered notifications dropped")
+				.register(meterRegistry);
+		this.misses = Counter.builder("notification.dedup.misses").description("Notifications seen the first time")
+				.register(meterRegistry);
+		if (enabled) {
+			log.info("Duplicate filter enabled, window {} seconds, capacity {}", properties.getDedupWindowSeconds(),
+					stripeCapacity * STRIPES);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * The key of a notification, 0 if it has no ack header.
+	 */
+	public long keyOf(String tenantId, Notification notification) {
+		String ackHeader = notification.getAckHeader();
+		if (ackHeader == null) {
+			return 0;
+		}
+		// FNV-1a, 64 bit
+		long hash = 0xcbf29ce484222325L;
+		hash = fnv(hash, tenantId);
+		hash = (hash ^ '/') * 0x100000001b3L;
+		hash = fnv(hash, ackHeader);
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Remember the key of a notification that was handled successfully.
+	 *
+	 * @return false if the key was seen before
+	 */
+	public boolean markSeen(long key) {
+		boolean added = stripe(key).add(key, System.nanoTime());
+		if (added) {
+			misses.increment();
+		}
+		return added;
+	}
+
+	/**
+	 * @return true if a notification with this key was handled successfully
+	 *         within the window
+	 */
+	public boolean isSeen(long key) {
+		return stripe(key).contains(key);
+	}
+
+	/* a redelivery was dropped or parked */
+	public void recordHit() {
+		hits.increment();
+	}
+
+	private Stripe stripe(long key) {
+		return stripes[(int) (key >>> 60) & (STRIPES - 1)];
+	}
+
+	private static long fnv(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	private class Stripe {
+		private LongHashSet current;
+		private LongHashSet previous;
+		private long rotatedAt = System.nanoTime();
+
+		private Stripe(int capacity) {
+			this.current = new LongHashSet(capacity);
+			this.previous = new LongHashSet(capacity);
+		}
+
+		private synchronized boolean add(long key, long now) {
+			if (current.contains(key) || previous.contains(key)) {
+				return false;
+			}
+			if (current.isFull() || now - rotatedAt >= windowNanos) {
+				LongHashSet oldest = previous;
+				previous = current;
+				current = oldest;
+				current.clear();
+				rotatedAt = now;
+			}
+			current.add(key);
+			return true;
+		}
+
+		private synchronized boolean contains(long key) {
+			return current.contains(key) || previous.contains(key);
+		}
+	}
+}
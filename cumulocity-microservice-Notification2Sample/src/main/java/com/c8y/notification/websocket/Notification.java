@@ -1,38 +1,248 @@
 package com.c8y.notification.websocket;
 
-import lombok.AccessLevel;
-import lombok.Getter;
-import lombok.RequiredArgsConstructor;
-
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
-@Getter
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * A Notification 2.0 message: the ack header line, the notification header
+ * lines, an empty line and the body.
+ *
+ * Parsing only records the line offsets over the original message, nothing is
+ * copied. Headers and body are available as {@link CharSequence} views, the
+ * {@link String} getters materialise (and cache) on first use.
+ *
+ * A streamed notification ({@link NotificationAssembler}) never has the whole
+ * message as text: the header lines are collected and the body fragments are
+ * fed through Jackson's non-blocking parser into a {@link TokenBuffer}. Handlers
+ * should use {@link #getBodyParser(ObjectCodec)}, which works for both.
+ */
 public class Notification {
-    private final String ackHeader;
-    private final List<String> notificationHeaders;
-    private final String message;
-
-    public static Notification parse(String message) {
-        ArrayList<String> headers = new ArrayList<>(8);
-        while (true) {
-            int i = message.indexOf('\n');
-            if (i == -1) {
-                break;
-            }
-            String header = message.substring(0, i);
-            message = message.substring(i + 1);
-            if (header.length() == 0) {
-                break;
-            }
-            headers.add(header);
-        }
-        if (headers.isEmpty()) {
-            return new Notification(null, Collections.emptyList(), message);
-        }
-        return new Notification(headers.get(0), Collections.unmodifiableList(headers.subList(1, headers.size())), message);
-    }
+
+	private final String raw;
+	// start/end offsets of all header lines, ack header first
+	private final int[] headerBounds;
+	private final int headerCount;
+	private final int bodyStart;
+	// body tokens of a streamed notification, raw is null in that case
+	private final TokenBuffer bodyTokens;
+
+	private String ackHeader;
+	private List<String> notificationHeaders;
+	private String message;
+
+	private Notification(String raw, int[] headerBounds, int headerCount, int bodyStart) {
+		this.raw = raw;
+		this.headerBounds = headerBounds;
+		this.headerCount = headerCount;
+		this.bodyStart = bodyStart;
+		this.bodyTokens = null;
+	}
+
+	private Notification(String ackHeader, List<String> notificationHeaders, TokenBuffer bodyTokens) {
+		this.raw = null;
+		this.headerBounds = null;
+		this.headerCount = ackHeader == null ? 0 : notificationHeaders.size() + 1;
+		this.bodyStart = 0;
+		this.bodyTokens = bodyTokens;
+		this.ackHeader = ackHeader;
+		this.notificationHeaders = notificationHeaders;
+	}
+
+	public static Notification parse(String message) {
+		int[] bounds = new int[16];
+		int count = 0;
+		int position = 0;
+		while (true) {
+			int i = message.indexOf('\n', position);
+			if (i == -1) {
+				break;
+			}
+			int lineStart = position;
+			position = i + 1;
+			if (i == lineStart) {
+				break;
+			}
+			if (count * 2 == bounds.length) {
+				int[] grown = new int[bounds.length * 2];
+				System.arraycopy(bounds, 0, grown, 0, bounds.length);
+				bounds = grown;
+			}
+			bounds[count * 2] = lineStart;
+			bounds[count * 2 + 1] = i;
+			count++;
+		}
+		return new Notification(message, bounds, count, position);
+	}
+
+	/*
+	 * A notification assembled by the {@link NotificationAssembler} from the
+	 * header lines and the body tokens, the message text was never kept.
+	 */
+	static Notification streamed(List<String> headers, TokenBuffer body) {
+		if (headers.isEmpty()) {
+			return new Notification(null, Collections.emptyList(), body);
+		}
+		return new Notification(headers.get(0), Collections.unmodifiableList(headers.subList(1, headers.size())),
+				body);
+	}
+
+	public String getAckHeader() {
+		if (ackHeader == null && headerCount > 0) {
+			ackHeader = raw.substring(headerBounds[0], headerBounds[1]);
+		}
+		return ackHeader;
+	}
+
+	/*
+	 * The header lines after the ack header, e.g. the subscription path and the
+	 * action.
+	 */
+	public List<String> getNotificationHeaders() {
+		if (notificationHeaders == null) {
+			if (headerCount <= 1) {
+				notificationHeaders = Collections.emptyList();
+			} else {
+				List<String> headers = new ArrayList<>(headerCount - 1);
+				for (int i = 0; i < headerCount - 1; i++) {
+					headers.add(getNotificationHeader(i).toString());
+				}
+				notificationHeaders = Collections.unmodifiableList(headers);
+			}
+		}
+		return notificationHeaders;
+	}
+
+	public boolean isStreamed() {
+		return raw == null;
+	}
+
+	public int getNotificationHeaderCount() {
+		return Math.max(0, headerCount - 1);
+	}
+
+	/*
+	 * View on a header line after the ack header without copying it.
+	 */
+	public CharSequence getNotificationHeader(int index) {
+		if (index < 0 || index >= getNotificationHeaderCount()) {
+			throw new IndexOutOfBoundsException("Header " + index + " of " + getNotificationHeaderCount());
+		}
+		if (raw == null) {
+			return notificationHeaders.get(index);
+		}
+		int line = index + 1;
+		return CharBuffer.wrap(raw, headerBounds[line * 2], headerBounds[line * 2 + 1]);
+	}
+
+	/*
+	 * The source of the notification, the last segment of the subscription path
+	 * header /tenant/api/sourceId. Null if the message has no such header.
+	 */
+	public CharSequence getSourceId() {
+		return getPathSegment(2);
+	}
+
+	/*
+	 * The api segment of the subscription path, e.g. "measurements" or
+	 * "managedobjects". Routing only needs this header, not the body.
+	 */
+	public CharSequence getApi() {
+		return getPathSegment(1);
+	}
+
+	private CharSequence getPathSegment(int index) {
+		if (getNotificationHeaderCount() == 0) {
+			return null;
+		}
+		CharSequence path = getNotificationHeader(0);
+		if (path.length() == 0 || path.charAt(0) != '/') {
+			return null;
+		}
+		int start = 1;
+		for (int segment = 0; segment < index; segment++) {
+			while (start < path.length() && path.charAt(start) != '/') {
+				start++;
+			}
+			if (start == path.length()) {
+				return null;
+			}
+			start++;
+		}
+		int end = start;
+		while (end < path.length() && path.charAt(end) != '/') {
+			end++;
+		}
+		return start == end ? null : path.subSequence(start, end);
+	}
+
+	/*
+	 * View on the body without copying it. A streamed body is rendered to text.
+	 */
+	public CharSequence getBody() {
+		if (raw == null) {
+			return getMessage();
+		}
+		return CharBuffer.wrap(raw, bodyStart, raw.length());
+	}
+
+	/*
+	 * A parser positioned before the first token of the body, no copy of the body
+	 * text is made.
+	 */
+	public JsonParser getBodyParser(ObjectCodec codec) throws IOException {
+		if (raw == null) {
+			return bodyTokens == null ? codec.getFactory().createParser("") : bodyTokens.asParser(codec);
+		}
+		StringReader reader = new StringReader(raw);
+		reader.skip(bodyStart);
+		JsonParser parser = codec.getFactory().createParser(reader);
+		parser.setCodec(codec);
+		return parser;
+	}
+
+	/*
+	 * The whole message text as received, null for a streamed notification.
+	 */
+	public String getRawMessage() {
+		return raw;
+	}
+
+	public String getMessage() {
+		if (message == null) {
+			message = raw == null ? renderBody() : raw.substring(bodyStart);
+		}
+		return message;
+	}
+
+	/*
+	 * Only used when someone asks for the text of a streamed notification, e.g.
+	 * for logging.
+	 */
+	private String renderBody() {
+		if (bodyTokens == null) {
+			return "";
+		}
+		Writer writer = new StringWriter();
+		try (JsonParser parser = bodyTokens.asParser();
+				JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+			parser.nextToken();
+			generator.copyCurrentStructure(parser);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to render notification body", e);
+		}
+		return writer.toString();
+	}
 
 }
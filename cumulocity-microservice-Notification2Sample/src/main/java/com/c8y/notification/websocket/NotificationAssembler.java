@@ -0,0 +1,159 @@
+package com.c8y.notification.websocket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Assembles the notifications of one websocket session from the fragments of
+ * its text messages. Only used from the read thread of the session, so it is
+ * not thread safe.
+ *
+ * Without streaming the fragments are collected and the whole message is
+ * parsed with {@link Notification#parse(String)}, a message that arrives in
+ * one fragment is not copied. With streaming the header lines are collected
+ * and every body fragment is fed into Jackson's non-blocking parser as it
+ * arrives, only the tokens of the body are kept.
+ */
+public class NotificationAssembler {
+
+	private final JsonFactory jsonFactory;
+	private final boolean streaming;
+
+	// text mode
+	private StringBuilder text;
+
+	// streaming mode
+	private List<String> headers = new ArrayList<>(4);
+	private final StringBuilder line = new StringBuilder(64);
+	private boolean inBody;
+	private JsonParser parser;
+	private TokenBuffer body;
+	private IOException failure;
+
+	public NotificationAssembler(JsonFactory jsonFactory, boolean streaming) {
+		this.jsonFactory = jsonFactory;
+		this.streaming = streaming;
+	}
+
+	/*
+	 * Returns the notification once the last fragment of a message was added,
+	 * null before. A message that could not be parsed is reported when it is
+	 * complete, the next message starts clean.
+	 */
+	public Notification append(String fragment, boolean last) throws IOException {
+		if (!streaming) {
+			return appendText(fragment, last);
+		}
+		if (failure == null) {
+			try {
+				feed(fragment);
+				if (last) {
+					finish();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (!last) {
+			return null;
+		}
+		IOException failed = failure;
+		Notification notification = failed == null ? Notification.streamed(headers, body) : null;
+		reset();
+		if (failed != null) {
+			throw failed;
+		}
+		return notification;
+	}
+
+	private Notification appendText(String fragment, boolean last) {
+		if (last && text == null) {
+			return Notification.parse(fragment);
+		}
+		if (text == null) {
+			text = new StringBuilder(fragment.length() * 2);
+		}
+		text.append(fragment);
+		if (!last) {
+			return null;
+		}
+		String message = text.toString();
+		text = null;
+		return Notification.parse(message);
+	}
+
+	private void feed(String fragment) throws IOException {
+		int position = 0;
+		while (!inBody && position < fragment.length()) {
+			int i = fragment.indexOf('\n', position);
+			if (i == -1) {
+				line.append(fragment, position, fragment.length());
+				return;
+			}
+			line.append(fragment, position, i);
+			position = i + 1;
+			if (line.length() == 0) {
+				inBody = true;
+				parser = jsonFactory.createNonBlockingByteArrayParser();
+			} else {
+				headers.add(line.toString());
+				line.setLength(0);
+			}
+		}
+		if (inBody && position < fragment.length()) {
+			byte[] bytes = fragment.substring(position).getBytes(StandardCharsets.UTF_8);
+			((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).feedInput(bytes, 0, bytes.length);
+			drain();
+		}
+	}
+
+	private void finish() throws IOException {
+		if (parser == null) {
+			// no empty line, a message without body
+			if (line.length() > 0) {
+				headers.add(line.toString());
+			}
+			return;
+		}
+		parser.getNonBlockingInputFeeder().endOfInput();
+		drain();
+	}
+
+	/*
+	 * Copy all tokens that are complete, the parser keeps a partial token until
+	 * the next fragment arrives.
+	 */
+	private void drain() throws IOException {
+		JsonToken token;
+		while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+			if (body == null) {
+				body = new TokenBuffer(parser);
+			}
+			body.copyCurrentEvent(parser);
+		}
+	}
+
+	private void reset() {
+		if (parser != null) {
+			try {
+				parser.close();
+			} catch (IOException e) {
+				// nothing to release for a byte array parser
+			}
+			parser = null;
+		}
+		headers = new ArrayList<>(4);
+		line.setLength(0);
+		inBody = false;
+		body = null;
+		failure = null;
+	}
+}
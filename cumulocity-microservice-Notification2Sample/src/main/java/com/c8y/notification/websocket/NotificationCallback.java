@@ -16,7 +16,8 @@ public interface NotificationCallback {
 
 	/**
 	 * Called on receiving a notification. The notification will be acknowledged if
-	 * no exception raised.
+	 * no exception raised. Called on a {@link NotificationDispatcher} worker
+	 * thread, not on the websocket thread.
 	 * 
 	 * @param notification the notification received.
 	 */
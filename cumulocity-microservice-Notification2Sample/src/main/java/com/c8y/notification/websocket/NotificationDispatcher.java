@@ -0,0 +1,538 @@
+package com.c8y.notification.websocket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.model.API;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded hand-off stage between the websocket and the notification handlers.
+ *
+ * The websocket thread only parses the message and puts it into a lane. Every
+ * {@link API} has its own group of lanes, created when the first notification
+ * of that API arrives, so a burst of inventory updates cannot fill the lanes
+ * of the measurements. The API is taken from the subscription path header,
+ * the body is not looked at.
+ *
+ * Within the group the lane is chosen by hashing tenant and source id, so all
+ * notifications of a device end up in the same lane. Every lane has exactly one
+ * worker thread: notifications of one device are handled in the order they
+ * arrived, different devices are handled in parallel.
+ *
+ * Within a lane every tenant has its own queue (bulkhead) of at most
+ * notification.dispatcher.tenantQueueCapacity notifications. A tenant that
+ * floods the lane only fills its own queue and blocks itself, memory stays
+ * bounded by lanes * tenantQueueCapacity per tenant. There is deliberately no
+ * limit over all tenants of a lane, a few flooding tenants would fill it and
+ * block everyone else. The worker takes the tenants in deficit round-robin order: each round a tenant may process as
+ * many notifications as its weight (notification.dispatcher.tenantWeights,
+ * default 1) before the next tenant with pending notifications gets its turn.
+ *
+ * The worker calls the {@link NotificationCallback} and only then sends the
+ * acknowledgement. A notification whose handler throws is never acknowledged,
+ * so it will be redelivered by the platform (at-least-once).
+ *
+ * What happens when the queue of a tenant is full is controlled by
+ * {@link BackpressurePolicy}. Redeliveries are dropped before dispatch if the
+ * {@link DuplicateFilter} is enabled. A redelivery of a notification that is
+ * still in flight is only acknowledged once the first delivery was handled, if
+ * that fails the redelivery is handled instead.
+ */
+@Component
+@Slf4j
+public class NotificationDispatcher {
+
+	public enum BackpressurePolicy {
+		/*
+		 * the websocket thread waits for free capacity. Jetty stops reading from the
+		 * socket and the platform throttles the subscription.
+		 */
+		BLOCK,
+		/*
+		 * the websocket thread processes the notification itself, same behaviour as
+		 * without the dispatcher. The notification can overtake queued notifications
+		 * of the same device.
+		 */
+		CALLER_RUNS
+	}
+
+	private static final String LANE_DEPTH_METRIC = "notification.dispatcher.lane.depth";
+	private static final String TENANT_DEPTH_METRIC = "notification.dispatcher.tenant.depth";
+	private static final String TENANT_WAIT_METRIC = "notification.dispatcher.tenant.wait";
+
+	private final int tenantQueueCapacity;
+	private final int defaultLanes;
+	private final Map<String, Integer> apiLanes;
+	private final Map<String, Integer> tenantWeights;
+	private final BackpressurePolicy backpressurePolicy;
+	private final MeterRegistry meterRegistry;
+	private final DuplicateFilter duplicateFilter;
+	private final Map<API, Lane[]> laneGroups = new ConcurrentHashMap<>();
+	private final Map<String, TenantStats> tenantStats = new ConcurrentHashMap<>();
+	// duplicate filter key - redeliveries waiting for the first delivery in flight
+	private final Map<Long, List<Task>> inFlight = new ConcurrentHashMap<>();
+	private final ExecutorService workers = Executors.newCachedThreadPool(new WorkerThreadFactory());
+	private volatile boolean running;
+
+	@Autowired
+	public NotificationDispatcher(Properties properties, MeterRegistry meterRegistry,
+			DuplicateFilter duplicateFilter) {
+		this.tenantQueueCapacity = Math.max(1, properties.getDispatcherTenantQueueCapacity());
+		this.defaultLanes = properties.getDispatcherLanes();
+		this.apiLanes = properties.getDispatcherApiLanes();
+		this.tenantWeights = properties.getDispatcherTenantWeights();
+		this.backpressurePolicy = properties.getDispatcherBackpressure();
+		this.meterRegistry = meterRegistry;
+		this.duplicateFilter = duplicateFilter;
+	}
+
+	@PostConstruct
+	public void start() {
+		log.info(
+				"Starting notification dispatcher with {} lanes per API ({}), capacity {} per tenant, tenant weights {} and backpressure policy {}",
+				defaultLanes, apiLanes, tenantQueueCapacity, tenantWeights, backpressurePolicy);
+		running = true;
+	}
+
+	@PreDestroy
+	public void stop() {
+		log.info("Stopping notification dispatcher, {} notifications pending (will be redelivered)", getQueueSize());
+		running = false;
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Queue a notification for processing. Called on the websocket thread.
+	 *
+	 * @param tenantId     tenant the notification belongs to
+	 * @param notification parsed notification
+	 * @param callback     handler of the connection
+	 * @param ack          sends the acknowledgement, executed after the handler
+	 *                     completed without exception
+	 */
+	public void dispatch(String tenantId, Notification notification, NotificationCallback callback, Runnable ack) {
+		long key = duplicateFilter.isEnabled() ? duplicateFilter.keyOf(tenantId, notification) : 0;
+		Task task = new Task(tenantId, notification, callback, ack, key);
+		if (key != 0 && !begin(task)) {
+			return;
+		}
+		Lane[] lanes = laneGroups.computeIfAbsent(API.fromNotificationApi(notification.getApi()), this::startLanes);
+		Lane lane = lanes[laneOf(tenantId, notification.getSourceId(), lanes.length)];
+		if (lane.offer(task)) {
+			return;
+		}
+		if (backpressurePolicy == BackpressurePolicy.CALLER_RUNS) {
+			log.debug("Dispatcher lane {}-{} full for tenant {}, processing notification on websocket thread",
+					lane.api, lane.index, tenantId);
+			process(task);
+			return;
+		}
+		try {
+			log.debug("Dispatcher lane {}-{} full for tenant {}, waiting for free capacity", lane.api, lane.index,
+					tenantId);
+			lane.put(task);
+		} catch (InterruptedException e) {
+			log.warn("Interrupted while waiting for dispatcher capacity, notification will not be acknowledged");
+			failed(task);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Tenant unsubscribed. Its empty queues are dropped right away, the others
+	 * once the worker took their last notification. The tenant's meters are
+	 * removed.
+	 */
+	public void evict(String tenantId) {
+		for (Lane[] lanes : laneGroups.values()) {
+			for (Lane lane : lanes) {
+				lane.evict(tenantId);
+			}
+		}
+		TenantStats stats = tenantStats.remove(tenantId);
+		if (stats != null) {
+			meterRegistry.remove(stats.wait);
+			meterRegistry.remove(stats.depthGauge);
+		}
+	}
+
+	public int getQueueSize() {
+		int size = 0;
+		for (Lane[] lanes : laneGroups.values()) {
+			for (Lane lane : lanes) {
+				size += lane.size();
+			}
+		}
+		return size;
+	}
+
+	/*
+	 * notification.dispatcher.apiLanes overrides the lane count per API, e.g.
+	 * {INVENTORY:1} for a single inventory lane.
+	 */
+	private Lane[] startLanes(API api) {
+		Lane[] lanes = new Lane[Math.max(1, apiLanes.getOrDefault(api.name(), defaultLanes))];
+		log.info("Starting {} dispatcher lanes for {} notifications", lanes.length, api);
+		for (int i = 0; i < lanes.length; i++) {
+			Lane lane = new Lane(api, i, tenantQueueCapacity);
+			Gauge.builder(LANE_DEPTH_METRIC, lane, Lane::size)
+					.description("Notifications waiting in the dispatcher lane").tag("api", api.name())
+					.tag("lane", String.valueOf(i)).register(meterRegistry);
+			workers.execute(lane::work);
+			lanes[i] = lane;
+		}
+		return lanes;
+	}
+
+	/*
+	 * Same hash as String.hashCode over tenant and source id, computed on the
+	 * header view without creating a String. Without a source id all
+	 * notifications of the tenant share one lane.
+	 */
+	static int laneOf(String tenantId, CharSequence sourceId, int laneCount) {
+		int hash = tenantId == null ? 0 : tenantId.hashCode();
+		if (sourceId != null) {
+			for (int i = 0; i < sourceId.length(); i++) {
+				hash = 31 * hash + sourceId.charAt(i);
+			}
+		}
+		// spread the high bits, sequential device ids differ in the low bits only
+		hash ^= (hash >>> 16);
+		return Math.floorMod(hash, laneCount);
+	}
+
+	/*
+	 * Queue depth and wait time of a tenant over all lanes, registered with the
+	 * first notification of the tenant.
+	 */
+	private TenantStats statsOf(String tenantId) {
+		return tenantStats.computeIfAbsent(tenantId, tenant -> {
+			AtomicInteger depth = new AtomicInteger();
+			return new TenantStats(depth,
+					Timer.builder(TENANT_WAIT_METRIC)
+							.description("Time notifications of the tenant wait in the dispatcher")
+							.tag("tenant", tenant).register(meterRegistry),
+					Gauge.builder(TENANT_DEPTH_METRIC, depth, AtomicInteger::get)
+							.description("Notifications of the tenant waiting in the dispatcher")
+							.tag("tenant", tenant).register(meterRegistry));
+		});
+	}
+
+	private int weightOf(String tenantId) {
+		return Math.max(1, tenantWeights.getOrDefault(tenantId, 1));
+	}
+
+	private void process(Task task) {
+		try {
+			task.callback.onNotification(task.tenantId, task.notification);
+		} catch (Exception e) {
+			log.error("Notification handler failed for tenant {}, notification will not be acknowledged: {}",
+					task.tenantId, e.getMessage());
+			failed(task);
+			return;
+		}
+		task.ack.run();
+		completed(task);
+	}
+
+	/*
+	 * Registers the first delivery of a key as in flight.
+	 *
+	 * @return false if the task is a redelivery: acknowledged right away if the
+	 *         first delivery was handled, otherwise parked until it finished
+	 */
+	private boolean begin(Task task) {
+		boolean[] seen = new boolean[1];
+		boolean[] parked = new boolean[1];
+		inFlight.compute(task.key, (key, waiting) -> {
+			if (waiting == null) {
+				/* completed() marks the key before it removes the entry */
+				seen[0] = duplicateFilter.isSeen(key);
+				return seen[0] ? null : new ArrayList<>(1);
+			}
+			waiting.add(task);
+			parked[0] = true;
+			return waiting;
+		});
+		if (!seen[0] && !parked[0]) {
+			return true;
+		}
+		duplicateFilter.recordHit();
+		log.debug("Redelivered notification {} for tenant {}", task.notification.getAckHeader(), task.tenantId);
+		if (seen[0]) {
+			task.ack.run();
+		}
+		return false;
+	}
+
+	/*
+	 * The key is only remembered once the handler succeeded. Redeliveries that
+	 * arrived meanwhile are acknowledged, the first ack probably got lost with
+	 * the connection.
+	 */
+	private void completed(Task task) {
+		if (task.key == 0) {
+			return;
+		}
+		duplicateFilter.markSeen(task.key);
+		List<Task> waiting = inFlight.remove(task.key);
+		if (waiting != null) {
+			for (Task redelivery : waiting) {
+				redelivery.ack.run();
+			}
+		}
+	}
+
+	/*
+	 * The notification was not handled. A parked redelivery takes its place and
+	 * is handled on this thread, the same lane keeps the order of the device.
+	 * Without one the platform redelivers it.
+	 */
+	private void failed(Task task) {
+		if (task.key == 0) {
+			return;
+		}
+		Task[] next = new Task[1];
+		inFlight.computeIfPresent(task.key, (key, waiting) -> {
+			if (waiting.isEmpty()) {
+				return null;
+			}
+			next[0] = waiting.remove(0);
+			return waiting;
+		});
+		if (next[0] != null) {
+			process(next[0]);
+		}
+	}
+
+	/*
+	 * The tenant queues of a lane. One lock guards all of them, it is only held
+	 * to add or take a single task.
+	 */
+	private class Lane {
+		private final API api;
+		private final int index;
+		private final int tenantCapacity;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition();
+		private final Condition notFull = lock.newCondition();
+		private final Map<String, TenantQueue> queues = new HashMap<>();
+		// tenants with pending tasks in round-robin order, the first one has its turn
+		private final ArrayDeque<TenantQueue> active = new ArrayDeque<>();
+		private volatile int size;
+
+		private Lane(API api, int index, int tenantCapacity) {
+			this.api = api;
+			this.index = index;
+			this.tenantCapacity = tenantCapacity;
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private boolean offer(Task task) {
+			lock.lock();
+			try {
+				TenantQueue queue = queueOf(task.tenantId);
+				if (isFull(queue)) {
+					return false;
+				}
+				enqueue(queue, task);
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Waits for free capacity in the queue of the task's tenant.
+		 */
+		private void put(Task task) throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				TenantQueue queue = queueOf(task.tenantId);
+				while (isFull(queue)) {
+					notFull.await();
+					/* the queue may have been evicted meanwhile */
+					queue = queueOf(task.tenantId);
+				}
+				enqueue(queue, task);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private boolean isFull(TenantQueue queue) {
+			return queue.tasks.size() >= tenantCapacity;
+		}
+
+		private TenantQueue queueOf(String tenantId) {
+			return queues.computeIfAbsent(tenantId,
+					tenant -> new TenantQueue(tenant, weightOf(tenant), statsOf(tenant)));
+		}
+
+		private void evict(String tenantId) {
+			lock.lock();
+			try {
+				TenantQueue queue = queues.get(tenantId);
+				if (queue == null) {
+					return;
+				}
+				if (queue.tasks.isEmpty()) {
+					queues.remove(tenantId);
+				} else {
+					queue.evicted = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void enqueue(TenantQueue queue, Task task) {
+			task.enqueuedAt = System.nanoTime();
+			queue.tasks.addLast(task);
+			queue.stats.depth.incrementAndGet();
+			size++;
+			if (queue.tasks.size() == 1) {
+				active.addLast(queue);
+				notEmpty.signal();
+			}
+		}
+
+		/*
+		 * Deficit round-robin with a cost of one per notification: the tenant whose
+		 * turn it is gets its weight as deficit, takes tasks until the deficit is
+		 * used up and then moves to the end of the round. A tenant without pending
+		 * tasks leaves the round and loses its remaining deficit.
+		 */
+		private Task take() throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				while (active.isEmpty()) {
+					if (!notEmpty.await(1, TimeUnit.SECONDS)) {
+						return null;
+					}
+				}
+				TenantQueue queue = active.peekFirst();
+				if (queue.deficit == 0) {
+					queue.deficit = queue.weight;
+				}
+				Task task = queue.tasks.pollFirst();
+				queue.deficit--;
+				queue.stats.depth.decrementAndGet();
+				queue.stats.wait.record(System.nanoTime() - task.enqueuedAt, TimeUnit.NANOSECONDS);
+				size--;
+				if (queue.tasks.isEmpty()) {
+					active.pollFirst();
+					queue.deficit = 0;
+					if (queue.evicted) {
+						queues.remove(queue.tenantId, queue);
+					}
+				} else if (queue.deficit == 0) {
+					active.addLast(active.pollFirst());
+				}
+				notFull.signalAll();
+				return task;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void work() {
+			while (running) {
+				try {
+					Task task = take();
+					if (task != null) {
+						process(task);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private static class TenantQueue {
+		private final String tenantId;
+		private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+		private final int weight;
+		private final TenantStats stats;
+		// notifications the tenant may still process in the current round
+		private int deficit;
+		// tenant unsubscribed, the queue is dropped once it is empty
+		private boolean evicted;
+
+		private TenantQueue(String tenantId, int weight, TenantStats stats) {
+			this.tenantId = tenantId;
+			this.weight = weight;
+			this.stats = stats;
+		}
+	}
+
+	private static class TenantStats {
+		private final AtomicInteger depth;
+		private final Timer wait;
+		private final Gauge depthGauge;
+
+		private TenantStats(AtomicInteger depth, Timer wait, Gauge depthGauge) {
+			this.depth = depth;
+			this.wait = wait;
+			this.depthGauge = depthGauge;
+		}
+	}
+
+	private static class Task {
+		private final String tenantId;
+		private final Notification notification;
+		private final NotificationCallback callback;
+		private final Runnable ack;
+		// duplicate filter key, 0 if not filtered
+		private final long key;
+		private long enqueuedAt;
+
+		private Task(String tenantId, Notification notification, NotificationCallback callback, Runnable ack,
+				long key) {
+			this.tenantId = tenantId;
+			this.notification = notification;
+			this.callback = callback;
+			this.ack = ack;
+			this.key = key;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "notification-lane-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
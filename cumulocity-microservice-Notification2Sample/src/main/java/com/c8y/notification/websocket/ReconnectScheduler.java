@@ -0,0 +1,148 @@
+package com.c8y.notification.websocket;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.eclipse.jetty.websocket.api.UpgradeException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.websocket.jetty.JettyWebSocketResources;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Schedules reconnects independently per connection.
+ *
+ * Every connection is identified by a key (e.g. tenant and consumer). A
+ * reconnect is scheduled with exponential backoff and jitter, attempts for the
+ * same key are never scheduled twice. A 409 Conflict means the platform still
+ * holds the state of the previous connection, which can take minutes to clear,
+ * so it starts with a longer delay than a network failure.
+ *
+ * The reconnect tasks run on a small pool, its size caps how many reconnects
+ * run at the same time so that a platform outage does not end in a burst of
+ * token and connect requests for all tenants.
+ */
+@Component
+@Slf4j
+public class ReconnectScheduler {
+
+	public enum Cause {
+		CONFLICT, FAILURE
+	}
+
+	/*
+	 * A reconnect attempt. Connecting is asynchronous, an exception only means
+	 * the attempt could not be started. The outcome is reported with
+	 * succeeded() from onOpen or a new schedule() from onClose/onError.
+	 */
+	public interface ReconnectTask {
+		void reconnect() throws Exception;
+	}
+
+	private final Properties properties;
+	private final JettyWebSocketResources webSocketResources;
+	private final ExecutorService reconnectExecutor;
+	private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+	private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+	@Autowired
+	public ReconnectScheduler(Properties properties, JettyWebSocketResources webSocketResources) {
+		this.properties = properties;
+		this.webSocketResources = webSocketResources;
+		this.reconnectExecutor = Executors.newFixedThreadPool(properties.getReconnectMaxConcurrent(),
+				new ReconnectThreadFactory());
+	}
+
+	@PreDestroy
+	public void stop() {
+		reconnectExecutor.shutdownNow();
+	}
+
+	public static Cause causeOf(Throwable t) {
+		if (t instanceof UpgradeException && ((UpgradeException) t).getResponseStatusCode() == 409) {
+			return Cause.CONFLICT;
+		}
+		return Cause.FAILURE;
+	}
+
+	/**
+	 * Schedule a reconnect for the given key unless one is already scheduled.
+	 *
+	 * @return true if a new attempt was scheduled
+	 */
+	public boolean schedule(String key, Cause cause, ReconnectTask task) {
+		if (!scheduled.add(key)) {
+			log.debug("Reconnect for {} already scheduled", key);
+			return false;
+		}
+		int attempt = attempts.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+		long delay = delayMillis(cause, attempt);
+		log.info("Reconnect for {} in {} ms (attempt {}, {})", key, delay, attempt + 1, cause);
+		webSocketResources.getScheduler().schedule(() -> reconnectExecutor.execute(() -> run(key, task)), delay,
+				TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/*
+	 * Connection is open again, the next disconnect starts with the initial delay.
+	 */
+	public void succeeded(String key) {
+		attempts.remove(key);
+	}
+
+	/*
+	 * Forget the key, e.g. when the tenant unsubscribed. An attempt that is
+	 * already scheduled still runs, the task has to check whether the connection
+	 * is still wanted.
+	 */
+	public void cancel(String key) {
+		attempts.remove(key);
+	}
+
+	private void run(String key, ReconnectTask task) {
+		scheduled.remove(key);
+		try {
+			task.reconnect();
+		} catch (Exception e) {
+			log.error("Reconnect attempt for {} failed: {}", key, e.getMessage());
+			schedule(key, causeOf(e), task);
+		}
+	}
+
+	/*
+	 * Exponential backoff capped at the maximum delay, with "equal jitter": half
+	 * of the delay is fixed, the other half random. Keeps a minimum distance
+	 * between attempts while spreading tenants that failed at the same time.
+	 */
+	private long delayMillis(Cause cause, int attempt) {
+		long base = TimeUnit.SECONDS.toMillis(cause == Cause.CONFLICT ? properties.getReconnectConflictDelaySeconds()
+				: properties.getReconnectInitialDelaySeconds());
+		long max = TimeUnit.SECONDS.toMillis(properties.getReconnectMaxDelaySeconds());
+		long delay = Math.min(max, base << Math.min(attempt, 16));
+		long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+
+	private static class ReconnectThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "websocket-reconnect-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
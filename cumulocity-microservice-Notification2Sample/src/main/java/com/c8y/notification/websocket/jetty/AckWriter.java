@@ -0,0 +1,227 @@
+package com.c8y.notification.websocket.jetty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coalesces the acknowledgements of one websocket connection.
+ *
+ * The Notification 2.0 protocol expects every ack as its own text frame, there
+ * is no cumulative ack. What can be saved is the blocking write per message:
+ * acks are queued and written asynchronously in Jetty batch mode, so all
+ * frames of one flush end up in as few socket writes as possible. A flush is
+ * triggered when {@code batchSize} acks are pending or every
+ * {@code flushIntervalMillis}, whichever comes first.
+ *
+ * All writes to the session, including the keep-alive ping, go through this
+ * class so that Jetty never sees a blocking and an async write at the same
+ * time.
+ *
+ * A writer is not restarted, a reconnect creates a new one. Acks of handlers
+ * that complete after {@link #stop()} are dropped, the platform redelivers
+ * those messages. The meters of the writer are removed on stop, so that
+ * closed connections do not pile up in the registry. Only the acks dropped up
+ * to then are counted as notification.ack.dropped.
+ */
+@Slf4j
+public class AckWriter {
+
+	private static final String ACK_LATENCY_METRIC = "notification.ack.latency";
+	private static final String ACK_QUEUE_DEPTH_METRIC = "notification.ack.queue.depth";
+	private static final String ACK_DROPPED_METRIC = "notification.ack.dropped";
+
+	private final String tenantId;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final MeterRegistry meterRegistry;
+	private final ConcurrentLinkedQueue<PendingAck> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final Timer ackLatency;
+	private final Counter dropped;
+	private final Gauge.Builder<AtomicInteger> queueDepthBuilder;
+	private Gauge queueDepth;
+
+	private volatile Session session;
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> flushTask;
+	private volatile boolean stopped;
+
+	public AckWriter(String tenantId, String connectionName, int batchSize, long flushIntervalMillis,
+			MeterRegistry meterRegistry) {
+		this.tenantId = tenantId;
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.meterRegistry = meterRegistry;
+		this.ackLatency = Timer.builder(ACK_LATENCY_METRIC).description("Time from handler completion to ack written")
+				.tag("tenant", tenantId).tag("connection", connectionName).register(meterRegistry);
+		this.dropped = Counter.builder(ACK_DROPPED_METRIC).description("Acks not written, the messages are redelivered")
+				.tag("tenant", tenantId).tag("connection", connectionName).register(meterRegistry);
+		this.queueDepthBuilder = Gauge.builder(ACK_QUEUE_DEPTH_METRIC, depth, AtomicInteger::get)
+				.description("Acks waiting to be written").tag("tenant", tenantId).tag("connection", connectionName);
+	}
+
+	/*
+	 * Called once the websocket is open. Starts the time based flush. The queue
+	 * depth gauge only exists while the connection is open, a reconnect registers
+	 * it again for the new writer.
+	 */
+	public synchronized void start(Session session, ScheduledExecutorService scheduler) {
+		this.session = session;
+		this.queueDepth = queueDepthBuilder.register(meterRegistry);
+		this.scheduler = scheduler;
+		this.flushTask = scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Stop flushing. Acks still pending are dropped, the platform redelivers
+	 * those messages on the next connection.
+	 */
+	public synchronized void stop() {
+		if (stopped) {
+			/* meters are removed by id, a second removal could hit the next writer */
+			return;
+		}
+		stopped = true;
+		if (flushTask != null) {
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+		if (session != null && session.isOpen()) {
+			flush();
+		}
+		session = null;
+		int notWritten = drain();
+		if (notWritten > 0) {
+			log.info("{} acks not written for tenant {}, messages will be redelivered", notWritten, tenantId);
+		}
+		if (queueDepth != null) {
+			meterRegistry.remove(queueDepth);
+			queueDepth = null;
+		}
+		meterRegistry.remove(ackLatency);
+		meterRegistry.remove(dropped);
+	}
+
+	public void enqueue(String ackId) {
+		if (stopped) {
+			dropped.increment();
+			return;
+		}
+		pending.add(new PendingAck(ackId, System.nanoTime()));
+		depth.incrementAndGet();
+		if (stopped) {
+			/* raced with stop(), which may already have drained the queue */
+			drain();
+			return;
+		}
+		if (depth.get() >= batchSize && flushRequested.compareAndSet(false, true)) {
+			ScheduledExecutorService current = scheduler;
+			if (current != null) {
+				current.execute(this::flush);
+			}
+		}
+	}
+
+	public int getQueueDepth() {
+		return depth.get();
+	}
+
+	public synchronized void ping() {
+		Session current = session;
+		if (current == null || !current.isOpen()) {
+			return;
+		}
+		try {
+			current.getRemote().sendPing(ByteBuffer.allocate(0));
+			log.debug("web socket keep alive ping...");
+		} catch (IOException e) {
+			log.warn("Keep alive ping failed for tenant {}: {}", tenantId, e.getMessage());
+		}
+	}
+
+	/*
+	 * Drops the pending acks.
+	 *
+	 * @return the number of acks dropped
+	 */
+	private int drain() {
+		int count = 0;
+		while (pending.poll() != null) {
+			depth.decrementAndGet();
+			count++;
+		}
+		dropped.increment(count);
+		return count;
+	}
+
+	private synchronized void flush() {
+		flushRequested.set(false);
+		Session current = session;
+		if (current == null || !current.isOpen() || pending.isEmpty()) {
+			return;
+		}
+		RemoteEndpoint remote = current.getRemote();
+		remote.setBatchMode(BatchMode.ON);
+		int written = 0;
+		PendingAck ack;
+		while ((ack = pending.poll()) != null) {
+			depth.decrementAndGet();
+			remote.sendString(ack.ackId, new AckCallback(ack));
+			written++;
+		}
+		try {
+			remote.flush();
+			log.debug("Flushed {} acks for tenant {}", written, tenantId);
+		} catch (IOException e) {
+			log.error("Failed to flush acks for tenant {}, messages will be redelivered: {}", tenantId,
+					e.getMessage());
+		}
+	}
+
+	private class AckCallback implements WriteCallback {
+		private final PendingAck ack;
+
+		private AckCallback(PendingAck ack) {
+			this.ack = ack;
+		}
+
+		@Override
+		public void writeSuccess() {
+			ackLatency.record(System.nanoTime() - ack.enqueuedNanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void writeFailed(Throwable t) {
+			log.error("Failed to ack message " + ack.ackId, t);
+		}
+	}
+
+	private static class PendingAck {
+		private final String ackId;
+		private final long enqueuedNanos;
+
+		private PendingAck(String ackId, long enqueuedNanos) {
+			this.ackId = ackId;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+	}
+}
@@ -3,44 +3,60 @@ package com.c8y.notification.websocket.jetty;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jetty.websocket.api.Session;
-import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
-import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
-import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
-import org.eclipse.jetty.websocket.api.annotations.OnWebSocketFrame;
-import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
-import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.WebSocketFrameListener;
+import org.eclipse.jetty.websocket.api.WebSocketPartialListener;
 import org.eclipse.jetty.websocket.api.extensions.Frame;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
-import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.eclipse.jetty.websocket.common.frames.PongFrame;
 
 import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.NotificationAssembler;
 import com.c8y.notification.websocket.NotificationCallback;
+import com.c8y.notification.websocket.NotificationDispatcher;
 
 import lombok.extern.slf4j.Slf4j;
 
-@WebSocket
+/*
+ * Listens for message fragments instead of whole messages, Jetty calls the
+ * partial listener on the read thread of the session while the frames arrive.
+ */
 @Slf4j
-public class JettyWebSocketClient {
+public class JettyWebSocketClient implements WebSocketPartialListener, WebSocketFrameListener {
 
 	private final NotificationCallback callback;
-	private Session session = null;
+	private final NotificationDispatcher dispatcher;
+	private final AckWriter ackWriter;
+	private volatile Session session = null;
 	private URI serverUri;
-	private WebSocketClient client;
-	private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
+	private final JettyWebSocketResources resources;
+	private final NotificationAssembler assembler;
+	private Future<Session> connectFuture;
+	private ScheduledFuture<?> keepAlive;
+	private volatile boolean disconnectRequested;
 	private String tenantId;
+	// written to the spool with every message
+	private final String subscription;
+	private final String consumer;
 
-	public JettyWebSocketClient(URI serverUri, NotificationCallback callback, String tenant) {
+	public JettyWebSocketClient(URI serverUri, NotificationCallback callback, NotificationDispatcher dispatcher,
+			AckWriter ackWriter, JettyWebSocketResources resources, String tenant, String subscription,
+			String consumer) {
 		this.serverUri = serverUri;
 		this.callback = callback;
+		this.dispatcher = dispatcher;
+		this.ackWriter = ackWriter;
+		this.resources = resources;
+		// the spool stores the message text, only streamed without it
+		this.assembler = new NotificationAssembler(resources.getJsonFactory(),
+				resources.isStreaming() && !resources.getSpool().isEnabled());
 		this.tenantId = tenant;
+		this.subscription = subscription;
+		this.consumer = consumer;
 	}
 
 	public URI getURI() {
@@ -49,18 +65,25 @@ public class JettyWebSocketClient {
 
 	// connect is async. Once this functions executes successfully, does not
 	// guarantee
-	// successful connection is established
+	// successful connection is established. The session is opened on the
+	// shared client, nothing is started here.
 	public JettyWebSocketClient connect() throws Exception {
 		log.info("Websocket client.connect()...");
-		client = new WebSocketClient();
-		client.start();
-		client.connect(this, this.serverUri, new ClientUpgradeRequest());
+		connectFuture = resources.getClient().connect(this, this.serverUri, new ClientUpgradeRequest());
 		log.info("client.connect() complete...");
 		return this;
 	}
 
-	public WebSocketClient getClient() {
-		return this.client;
+	/*
+	 * true if the connect attempt failed or the session was closed after it had
+	 * been opened. A connect that is still in progress is not failed.
+	 */
+	public boolean isFailed() {
+		if (connectFuture == null || !connectFuture.isDone()) {
+			return false;
+		}
+		Session current = session;
+		return current == null || !current.isOpen();
 	}
 
 	public Session getSession() {
@@ -73,81 +96,127 @@ public class JettyWebSocketClient {
 
 	public void disconnect() throws Exception {
 		log.info("Disconnect called...");
+		disconnectRequested = true;
+		ackWriter.stop();
+		stopKeepAlive();
+		if (connectFuture != null && !connectFuture.isDone()) {
+			log.info("Cancelling pending connect...");
+			connectFuture.cancel(true);
+		}
 		if (session != null && session.isOpen()) {
 			log.info("Closing open session...");
 			session.close();
 		}
 
-		if (client != null) {
-			log.info("Current state of the client: " + client.getState());
-			client.stop();
-		}
-
 	}
 	/*
-	 * Called once websocket connection is established. Start a thread once
-	 * connection is opened. This keeps sending ping messages every 10 seconds. This
-	 * will ensure that the connection is not closed when idle.
+	 * Called once websocket connection is established. Schedule a ping on the
+	 * shared scheduler every 10 seconds. This will ensure that the connection is
+	 * not closed when idle.
 	 */
 
-	@OnWebSocketConnect
-	public void onOpen(Session session) throws URISyntaxException {
+	@Override
+	public void onWebSocketConnect(Session session) {
 		log.info("web socket open...");
 
 		this.session = session;
-		this.callback.onOpen(tenantId, new URI("ws", session.getRemoteAddress().getHostName(), null));
-		ScheduledFuture<?> result = executorService.scheduleAtFixedRate(() -> {
+		ackWriter.start(session, resources.getScheduler());
+		try {
+			this.callback.onOpen(tenantId, new URI("ws", session.getRemoteAddress().getHostName(), null));
+		} catch (URISyntaxException e) {
+			log.error("Invalid remote address for tenant {}: {}", tenantId, e.getMessage());
+		}
+		keepAlive = resources.getScheduler().scheduleAtFixedRate(ackWriter::ping, 10, 10, TimeUnit.SECONDS);
 
-			try {
-				ByteBuffer payload = ByteBuffer.allocate(0);
-				this.session.getRemote().sendPing(payload);
-				log.debug("web socket keep alive ping...");
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	}
 
-		}, 10, 10, TimeUnit.SECONDS);
+	/*
+	 * Only parse and hand over to the dispatcher, the handler runs on a worker
+	 * thread. The ack is sent by the worker once the handler completed.
+	 * 
+	 * Jetty calls the partial listener on the read thread of the session, so
+	 * messages are dispatched one after the other in the order they arrived. The
+	 * fragments are handed to the assembler as they arrive, in streaming mode the
+	 * body is fed into Jackson's non-blocking parser and the message text is
+	 * never built.
+	 */
+	@Override
+	public void onWebSocketPartialText(String fragment, boolean last) {
+		Notification notification;
+		try {
+			notification = assembler.append(fragment, last);
+		} catch (IOException e) {
+			log.error("Unable to parse notification for tenant {}, it will be redelivered: {}", tenantId,
+					e.getMessage());
+			return;
+		}
+		if (notification == null) {
+			return;
+		}
+		if (resources.getSpool().isEnabled()) {
+			spool(notification);
+			return;
+		}
+		dispatcher.dispatch(tenantId, notification, callback, () -> ack(notification));
+	}
 
+	/*
+	 * Spool mode: the message is written to the local spool and acknowledged once
+	 * it is on disk, the handlers read it from there. If the spool fails the
+	 * notification is dispatched directly.
+	 */
+	private void spool(Notification notification) {
+		if (!resources.getSpool().append(tenantId, subscription, consumer, notification.getRawMessage(),
+				() -> ack(notification))) {
+			dispatcher.dispatch(tenantId, notification, callback, () -> ack(notification));
+		}
 	}
 
-	@OnWebSocketMessage
-	public void onMessage(String message) {
-		Notification notification = Notification.parse(message);
-		this.callback.onNotification(tenantId, notification);
-		if (notification.getAckHeader() != null) {
-			try {
-				session.getRemote().sendString(notification.getAckHeader()); // ack message
-			} catch (Exception e) {
-				log.error("Failed to ack message " + notification.getAckHeader(), e);
-			}
-		} else {
+	/*
+	 * Called from the worker threads. The ack is only queued, the ack writer
+	 * writes it asynchronously together with other pending acks.
+	 */
+	private void ack(Notification notification) {
+		if (notification.getAckHeader() == null) {
 			log.warn("No message id found for ack");
+			return;
 		}
+		ackWriter.enqueue(notification.getAckHeader());
 	}
 
 	/*
-	 * Shutdown the ping thread once websocket is closed.
+	 * Cancel the ping once websocket is closed. A close requested with
+	 * disconnect() is not reported to the callback, otherwise it would be handled
+	 * like a lost connection and reconnected.
 	 */
-	@OnWebSocketClose
-	public void onClose(int statusCode, String reason) {
+	@Override
+	public void onWebSocketClose(int statusCode, String reason) {
 		log.info("WebSocket closed. Code:" + statusCode + ", reason: " + reason);
-		if (executorService != null && !executorService.isShutdown()) {
-			executorService.shutdownNow();
+		stopKeepAlive();
+		ackWriter.stop();
+
+		if (!disconnectRequested) {
+			this.callback.onClose(tenantId);
 		}
+	}
 
-		this.callback.onClose(tenantId);
+	private void stopKeepAlive() {
+		ScheduledFuture<?> current = keepAlive;
+		if (current != null) {
+			current.cancel(false);
+			keepAlive = null;
+		}
 	}
 
-	@OnWebSocketError
-	public void onError(Throwable t) {
+	@Override
+	public void onWebSocketError(Throwable t) {
 		log.error("WebSocket error:" + t);
 		this.callback.onError(tenantId, t);
 	}
 
-	@OnWebSocketFrame
-	@SuppressWarnings("unused")
-	public void onFrame(Frame pong) {
-		if (pong instanceof PongFrame) {
+	@Override
+	public void onWebSocketFrame(Frame frame) {
+		if (frame instanceof PongFrame) {
 			log.debug("pong message recieved");
 		}
 	}
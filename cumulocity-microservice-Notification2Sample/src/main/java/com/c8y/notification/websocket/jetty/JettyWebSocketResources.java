@@ -0,0 +1,123 @@
+package com.c8y.notification.websocket.jetty;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.spool.NotificationSpool;
+import com.fasterxml.jackson.core.JsonFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Jetty resources shared by all websocket connections of this microservice.
+ *
+ * A {@link WebSocketClient} comes with its own HttpClient, selectors and
+ * thread pool, so there is exactly one for all tenants. It is started with the
+ * application context and stopped on shutdown, connections only open and
+ * close sessions on it.
+ *
+ * Keep-alive pings and ack flushes of all sessions are multiplexed on one
+ * small scheduler instead of one scheduler per connection.
+ *
+ * With notification.websocket.streaming=true the connections feed the body
+ * fragments of a message into Jackson's non-blocking parser instead of keeping
+ * the text of the whole message, see
+ * {@link com.c8y.notification.websocket.NotificationAssembler}. With
+ * notification.spool.enabled=true messages are written to the
+ * {@link NotificationSpool} instead of being dispatched directly.
+ */
+@Component
+@Slf4j
+public class JettyWebSocketResources {
+
+	private final Properties properties;
+	private final NotificationSpool spool;
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private WebSocketClient client;
+	private ScheduledThreadPoolExecutor scheduler;
+
+	@Autowired
+	public JettyWebSocketResources(Properties properties, NotificationSpool spool) {
+		this.properties = properties;
+		this.spool = spool;
+	}
+
+	@PostConstruct
+	public void start() throws Exception {
+		log.info("Starting shared websocket client with {} selectors, max {} threads and {} scheduler threads",
+				properties.getWebSocketSelectors(), properties.getWebSocketMaxThreads(),
+				properties.getWebSocketSchedulerThreads());
+		QueuedThreadPool threadPool = new QueuedThreadPool(properties.getWebSocketMaxThreads(),
+				Math.min(2, properties.getWebSocketMaxThreads()));
+		threadPool.setName("websocket-client");
+		threadPool.setDaemon(true);
+
+		HttpClient httpClient = new HttpClient(new HttpClientTransportOverHTTP(properties.getWebSocketSelectors()),
+				new SslContextFactory.Client());
+		httpClient.setExecutor(threadPool);
+
+		client = new WebSocketClient(httpClient);
+		client.start();
+
+		scheduler = new ScheduledThreadPoolExecutor(properties.getWebSocketSchedulerThreads(),
+				new SchedulerThreadFactory());
+		/*
+		 * connections cancel their tasks on close, do not keep cancelled tasks in the
+		 * queue until their delay elapsed.
+		 */
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	@PreDestroy
+	public void stop() throws Exception {
+		log.info("Stopping shared websocket client...");
+		scheduler.shutdownNow();
+		client.stop();
+		client.getHttpClient().stop();
+	}
+
+	public WebSocketClient getClient() {
+		return client;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	public boolean isStreaming() {
+		return properties.isWebSocketStreaming();
+	}
+
+	public JsonFactory getJsonFactory() {
+		return jsonFactory;
+	}
+
+	public NotificationSpool getSpool() {
+		return spool;
+	}
+
+	private static class SchedulerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "websocket-scheduler-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package cumulocity.microservice.Notification2Sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.websocket.DuplicateFilter;
+import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.NotificationCallback;
+import com.c8y.notification.websocket.NotificationDispatcher;
+import com.c8y.notification.websocket.NotificationDispatcher.BackpressurePolicy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DuplicateDispatchTest {
+
+	private static final String MESSAGE = "ack-1\n/t1/measurements/42\nCREATE\n\n{}";
+
+	private NotificationDispatcher dispatcher;
+
+	@Before
+	public void setUp() {
+		Properties properties = new Properties();
+		properties.setDispatcherTenantQueueCapacity(16);
+		properties.setDispatcherLanes(1);
+		properties.setDispatcherApiLanes(Map.of());
+		properties.setDispatcherTenantWeights(Map.of());
+		properties.setDispatcherBackpressure(BackpressurePolicy.BLOCK);
+		properties.setDedupEnabled(true);
+		properties.setDedupWindowSeconds(600);
+		properties.setDedupCapacity(1024);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		dispatcher = new NotificationDispatcher(properties, registry, new DuplicateFilter(properties, registry));
+		dispatcher.start();
+	}
+
+	@After
+	public void tearDown() {
+		dispatcher.stop();
+	}
+
+	@Test
+	public void redeliveryIsHandledWhenFirstCopyFails() throws Exception {
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CountDownLatch releaseFirst = new CountDownLatch(1);
+		CountDownLatch redeliveryAcked = new CountDownLatch(1);
+		AtomicInteger handled = new AtomicInteger();
+		AtomicInteger firstAcks = new AtomicInteger();
+
+		dispatcher.dispatch("t1", Notification.parse(MESSAGE), new Handler(() -> {
+			handled.incrementAndGet();
+			firstStarted.countDown();
+			await(releaseFirst);
+			throw new IllegalStateException("handler failed");
+		}), firstAcks::incrementAndGet);
+		assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+		/* e.g. after a reconnect, the first copy is still in flight */
+		dispatcher.dispatch("t1", Notification.parse(MESSAGE), new Handler(handled::incrementAndGet),
+				redeliveryAcked::countDown);
+		assertEquals(1, redeliveryAcked.getCount());
+
+		releaseFirst.countDown();
+		assertTrue(redeliveryAcked.await(5, TimeUnit.SECONDS));
+		assertEquals(2, handled.get());
+		assertEquals(0, firstAcks.get());
+	}
+
+	@Test
+	public void redeliveryOfHandledNotificationIsOnlyAcknowledged() throws Exception {
+		CountDownLatch firstAcked = new CountDownLatch(1);
+		AtomicInteger handled = new AtomicInteger();
+		dispatcher.dispatch("t1", Notification.parse(MESSAGE), new Handler(handled::incrementAndGet),
+				firstAcked::countDown);
+		assertTrue(firstAcked.await(5, TimeUnit.SECONDS));
+
+		CountDownLatch redeliveryAcked = new CountDownLatch(1);
+		dispatcher.dispatch("t1", Notification.parse(MESSAGE), new Handler(handled::incrementAndGet),
+				redeliveryAcked::countDown);
+		assertTrue(redeliveryAcked.await(5, TimeUnit.SECONDS));
+		assertEquals(1, handled.get());
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Handler implements NotificationCallback {
+		private final Runnable onNotification;
+
+		private Handler(Runnable onNotification) {
+			this.onNotification = onNotification;
+		}
+
+		@Override
+		public void onOpen(String tenantId, URI serverUri) {
+		}
+
+		@Override
+		public void onNotification(String tenantId, Notification notification) {
+			onNotification.run();
+		}
+
+		@Override
+		public void onError(String tenantId, Throwable t) {
+		}
+
+		@Override
+		public void onClose(String tenantId) {
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package cumulocity.microservice.Notification2Sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.c8y.notification.util.JumpHash;
+
+public class JumpHashTest {
+
+	@Test
+	public void growingOnlyMovesKeysIntoTheNewBucket() {
+		int moved = 0;
+		for (int id = 1; id <= 10000; id++) {
+			int before = JumpHash.bucket(String.valueOf(id), 4);
+			int after = JumpHash.bucket(String.valueOf(id), 5);
+			if (before != after) {
+				assertEquals(4, after);
+				moved++;
+			}
+		}
+		// about a fifth of the keys move
+		assertTrue("moved " + moved, moved > 1600 && moved < 2400);
+	}
+
+	@Test
+	public void sequentialIdsAreSpreadEvenly() {
+		int[] counts = new int[8];
+		for (int id = 1000; id < 9000; id++) {
+			counts[JumpHash.bucket(String.valueOf(id), counts.length)]++;
+		}
+		for (int count : counts) {
+			assertTrue("bucket size " + count, count > 850 && count < 1150);
+		}
+	}
+
+	@Test
+	public void singleBucket() {
+		assertEquals(0, JumpHash.bucket("12345", 1));
+		assertEquals(0, JumpHash.bucket("not-a-number", 1));
+	}
+}
@@ -0,0 +1,59 @@
+package cumulocity.microservice.Notification2Sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.c8y.notification.util.LongHashSet;
+
+public class LongHashSetTest {
+
+	@Test
+	public void addContainsRemove() {
+		LongHashSet set = new LongHashSet(8);
+
+		assertTrue(set.add(0));
+		assertTrue(set.add(42));
+		assertFalse(set.add(42));
+		assertTrue(set.contains(0));
+		assertTrue(set.contains(42));
+		assertFalse(set.contains(7));
+		assertTrue(set.remove(42));
+		assertFalse(set.contains(42));
+		assertFalse(set.remove(42));
+		assertEquals(1, set.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void failsWhenFull() {
+		LongHashSet set = new LongHashSet(2);
+		for (long i = 1; i <= set.capacity() + 1; i++) {
+			set.add(i);
+		}
+	}
+
+	@Test
+	public void matchesHashSetUnderRandomOperations() {
+		LongHashSet set = new LongHashSet(512);
+		Set<Long> expected = new HashSet<>();
+		Random random = new Random(4711);
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextInt(1024);
+			if (random.nextBoolean() && expected.size() < set.capacity()) {
+				assertEquals(expected.add(key), set.add(key));
+			} else {
+				assertEquals(expected.remove(key), set.remove(key));
+			}
+			assertEquals(expected.size(), set.size());
+		}
+		for (long key = 0; key < 1024; key++) {
+			assertEquals(expected.contains(key), set.contains(key));
+		}
+	}
+}
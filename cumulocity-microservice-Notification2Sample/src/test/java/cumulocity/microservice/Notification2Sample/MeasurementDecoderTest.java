@@ -0,0 +1,86 @@
+package cumulocity.microservice.Notification2Sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.c8y.notification.model.MeasurementValue;
+import com.c8y.notification.util.MeasurementDecoder;
+import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.NotificationAssembler;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MeasurementDecoderTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final MeasurementDecoder decoder = new MeasurementDecoder();
+
+	@Test
+	public void decodesAllSeries() throws Exception {
+		List<MeasurementValue> values = decode("{\"time\":\"2024-03-01T10:15:30.123Z\",\"id\":\"98765\","
+				+ "\"source\":{\"self\":\"https://t1/inventory/managedObjects/4711\",\"id\":\"4711\"},"
+				+ "\"type\":\"c8y_Environment\",\"c8y_Temperature\":{\"T\":{\"unit\":\"C\",\"value\":21.5}},"
+				+ "\"c8y_Acceleration\":{\"x\":{\"value\":1},\"y\":{\"value\":-2.5E-1,\"unit\":\"g\"}}}");
+
+		assertEquals(3, values.size());
+		MeasurementValue temperature = values.get(0);
+		assertEquals("4711", temperature.getSourceId());
+		assertEquals("c8y_Temperature", temperature.getFragment());
+		assertEquals("T", temperature.getSeries());
+		assertEquals(21.5, temperature.getValue(), 0);
+		assertEquals("C", temperature.getUnit());
+		assertEquals(1709288130123L, temperature.getTime());
+		assertEquals(1.0, values.get(1).getValue(), 0);
+		assertNull(values.get(1).getUnit());
+		assertEquals("y", values.get(2).getSeries());
+		assertEquals(-0.25, values.get(2).getValue(), 0);
+	}
+
+	@Test
+	public void sourceAndTimeAfterFragments() throws Exception {
+		List<MeasurementValue> values = decode("{\"c8y_Temperature\":{\"T\":{\"value\":21.5}},"
+				+ "\"source\":{\"id\":\"4711\"},\"time\":\"2024-03-01T11:15:30.123+01:00\"}");
+
+		assertEquals(1, values.size());
+		assertEquals("4711", values.get(0).getSourceId());
+		assertEquals(1709288130123L, values.get(0).getTime());
+	}
+
+	@Test
+	public void skipsFragmentsWithoutValues() throws Exception {
+		List<MeasurementValue> values = decode("{\"source\":{\"id\":\"4711\"},\"c8y_Info\":{\"text\":\"x\","
+				+ "\"nested\":{\"list\":[1,{\"value\":2}]}},\"tags\":[\"a\"],\"c8y_T\":{\"T\":{\"value\":1}}}");
+
+		assertEquals(1, values.size());
+		assertEquals("c8y_T", values.get(0).getFragment());
+	}
+
+	@Test
+	public void decodesStreamedNotification() throws Exception {
+		String message = "ack-1\n/t1/measurements/4711\nCREATE\n\n"
+				+ "{\"source\":{\"id\":\"4711\"},\"c8y_T\":{\"T\":{\"value\":1}}}";
+		NotificationAssembler assembler = new NotificationAssembler(objectMapper.getFactory(), true);
+		assertNull(assembler.append(message.substring(0, 40), false));
+		Notification notification = assembler.append(message.substring(40), true);
+
+		List<MeasurementValue> values = new ArrayList<>();
+		try (JsonParser parser = notification.getBodyParser(objectMapper.reader())) {
+			assertEquals(1, decoder.decode(parser, values::add));
+		}
+		assertEquals("4711", values.get(0).getSourceId());
+	}
+
+	private List<MeasurementValue> decode(String body) throws Exception {
+		Notification notification = Notification.parse("ack-1\n/t1/measurements/4711\nCREATE\n\n" + body);
+		List<MeasurementValue> values = new ArrayList<>();
+		try (JsonParser parser = notification.getBodyParser(objectMapper.reader())) {
+			decoder.decode(parser, values::add);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,326 @@
+package cumulocity.microservice.Notification2Sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.handler.NotificationHandler;
+import com.c8y.notification.handler.NotificationHandlerRegistry;
+import com.c8y.notification.model.API;
+import com.c8y.notification.platform.SubscribedSources;
+import com.c8y.notification.service.TenantStartupCoordinator;
+import com.c8y.notification.spool.NotificationSpool;
+import com.c8y.notification.websocket.DuplicateFilter;
+import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.NotificationDispatcher;
+import com.c8y.notification.websocket.NotificationDispatcher.BackpressurePolicy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * Crash recovery of the spool: every test stops a spool, optionally damages its
+ * files like a crash would, and starts a new spool on the same directory.
+ */
+public class NotificationSpoolTest {
+
+	private static final String TENANT = "t1";
+	private static final String SUBSCRIPTION = "deviceMeasurementSubscription";
+
+	private Path directory;
+	private Properties properties;
+	private final List<Running> started = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("notification-spool");
+		properties = new Properties();
+		properties.setDispatcherTenantQueueCapacity(16);
+		properties.setDispatcherLanes(1);
+		properties.setDispatcherApiLanes(Map.of());
+		properties.setDispatcherTenantWeights(Map.of());
+		properties.setDispatcherBackpressure(BackpressurePolicy.BLOCK);
+		properties.setStartupPriorityTenants(List.of());
+		properties.setSpoolEnabled(true);
+		properties.setSpoolDirectory(directory.toString());
+		properties.setSpoolSegmentSizeMB(1);
+		properties.setSpoolSyncIntervalMillis(10);
+		properties.setSpoolRetentionMinutes(60);
+		properties.setSpoolMaxInFlight(100);
+		properties.setSpoolRetryDelaySeconds(0);
+		properties.setSpoolMaxRetries(2);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Running running : started) {
+			running.stop();
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	@Test
+	public void replaysFromCheckpointAfterRestart() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Running first = start(body -> {
+			if (body.contains("\"n\":2")) {
+				await(release);
+			}
+		});
+		append(first, 1);
+		append(first, 2);
+		append(first, 3);
+		assertEquals(body(1), first.handled.poll(5, TimeUnit.SECONDS));
+		/* the second notification is still in the handler, it is the checkpoint */
+		awaitLag(first, recordLength(2) + recordLength(3));
+		first.stop();
+		release.countDown();
+
+		Running second = start(body -> {
+		});
+		assertEquals(body(2), second.handled.poll(5, TimeUnit.SECONDS));
+		assertEquals(body(3), second.handled.poll(5, TimeUnit.SECONDS));
+		assertNull(second.handled.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void tornRecordAtTheTailIsDropped() throws Exception {
+		Running first = blocked();
+		append(first, 1);
+		append(first, 2);
+		first.stop();
+		Path segment = segments().get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			/* the last byte of the second payload never made it to disk */
+			long end = recordLength(1) + recordLength(2);
+			channel.write(ByteBuffer.wrap(new byte[] { 0 }), end - 1);
+		}
+
+		assertRecoveredWithoutSecondRecord();
+	}
+
+	@Test
+	public void zeroedRecordAtTheTailIsDropped() throws Exception {
+		Running first = blocked();
+		append(first, 1);
+		append(first, 2);
+		first.stop();
+		Path segment = segments().get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			/* the length is written last, the crash happened before */
+			channel.write(ByteBuffer.allocate(4), recordLength(1));
+		}
+
+		assertRecoveredWithoutSecondRecord();
+	}
+
+	@Test
+	public void rollsSegmentsForPayloadsLargerThanTheSegment() throws Exception {
+		Running running = start(body -> {
+		});
+		String large = largeBody();
+		append(running, 1);
+		assertTrue(running.spool.append(TENANT, SUBSCRIPTION, SUBSCRIPTION, message(2, large), () -> {
+		}));
+		append(running, 3);
+
+		assertEquals(body(1), running.handled.poll(5, TimeUnit.SECONDS));
+		assertEquals(large, running.handled.poll(5, TimeUnit.SECONDS));
+		assertEquals(body(3), running.handled.poll(5, TimeUnit.SECONDS));
+		List<Path> segments = segments();
+		assertEquals(3, segments.size());
+		assertTrue(Files.size(segments.get(1)) >= large.length());
+	}
+
+	@Test
+	public void retentionDeletesSegmentsBelowTheCheckpoint() throws Exception {
+		properties.setSpoolRetentionMinutes(0);
+		Running running = start(body -> {
+		});
+		append(running, 1);
+		assertTrue(running.spool.append(TENANT, SUBSCRIPTION, SUBSCRIPTION, message(2, largeBody()), () -> {
+		}));
+		append(running, 3);
+		for (int i = 0; i < 3; i++) {
+			running.handled.poll(5, TimeUnit.SECONDS);
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (segments().size() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		List<Path> segments = segments();
+		assertEquals(1, segments.size());
+		assertEquals(String.format("%020d.spool", recordLength(1) + recordLength(message(2, largeBody()))),
+				segments.get(0).getFileName().toString());
+	}
+
+	@Test
+	public void failingNotificationIsMovedToTheDeadLetterDirectory() throws Exception {
+		Running running = start(body -> {
+			if (body.contains("\"n\":1")) {
+				throw new IllegalStateException("handler failed");
+			}
+		});
+		append(running, 1);
+		append(running, 2);
+
+		assertEquals(body(2), running.handled.poll(5, TimeUnit.SECONDS));
+		Path deadLetter = directory.resolve("dead-letter").resolve(String.format("%020d", 0));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!Files.exists(deadLetter) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(TENANT + "\n" + SUBSCRIPTION + "\n" + SUBSCRIPTION + "\n" + message(1, body(1)),
+				Files.readString(deadLetter));
+		assertEquals(3, running.attempts.get(body(1)).intValue());
+	}
+
+	private void assertRecoveredWithoutSecondRecord() throws Exception {
+		Running second = start(body -> {
+		});
+		assertEquals(body(1), second.handled.poll(5, TimeUnit.SECONDS));
+		/* written where the damaged record was */
+		append(second, 3);
+		assertEquals(body(3), second.handled.poll(5, TimeUnit.SECONDS));
+		assertNull(second.handled.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	/*
+	 * A spool whose handler does not return until the test ends, nothing is
+	 * consumed.
+	 */
+	private Running blocked() throws IOException {
+		CountDownLatch never = new CountDownLatch(1);
+		return start(body -> await(never));
+	}
+
+	private Running start(Consumer<String> onBody) throws IOException {
+		Running running = new Running(properties, onBody);
+		started.add(running);
+		running.spool.start();
+		return running;
+	}
+
+	private static void append(Running running, int n) {
+		assertTrue(running.spool.append(TENANT, SUBSCRIPTION, SUBSCRIPTION, message(n, body(n)), () -> {
+		}));
+	}
+
+	private static String body(int n) {
+		return "{\"n\":" + n + "}";
+	}
+
+	private static String message(int n, String body) {
+		return "ack-" + n + "\n/" + TENANT + "/measurements/42\nCREATE\n\n" + body;
+	}
+
+	/* larger than a segment of 1 MB */
+	private static String largeBody() {
+		return "{\"n\":2,\"text\":\"" + "x".repeat(1536 * 1024) + "\"}";
+	}
+
+	private static long recordLength(int n) {
+		return recordLength(message(n, body(n)));
+	}
+
+	/* record header, tenant, subscription and consumer with their lengths, message */
+	private static long recordLength(String message) {
+		return 8 + 6 + TENANT.length() + 2 * SUBSCRIPTION.length() + message.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static void awaitLag(Running running, long lag) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (running.spool.getLag() != lag && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(lag, running.spool.getLag());
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".spool")).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Running {
+		private final BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+		private final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+		private final NotificationDispatcher dispatcher;
+		private final NotificationSpool spool;
+		private boolean stopped;
+
+		private Running(Properties properties, Consumer<String> onBody) {
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			dispatcher = new NotificationDispatcher(properties, registry, new DuplicateFilter(properties, registry));
+			dispatcher.start();
+			NotificationHandler<String> handler = new NotificationHandler<String>() {
+
+				@Override
+				public API getApi() {
+					return API.MEASUREMENT;
+				}
+
+				@Override
+				public String decode(Notification notification) {
+					return notification.getMessage();
+				}
+
+				@Override
+				public void handle(String tenantId, Notification notification, String body) {
+					attempts.merge(body, 1, Integer::sum);
+					onBody.accept(body);
+					handled.add(body);
+				}
+			};
+			NotificationHandlerRegistry handlerRegistry = new NotificationHandlerRegistry(List.of(handler),
+					new SubscribedSources(properties), new TenantStartupCoordinator(properties, registry), registry);
+			spool = new NotificationSpool(properties, dispatcher, handlerRegistry, registry);
+		}
+
+		private void stop() throws IOException {
+			if (!stopped) {
+				stopped = true;
+				spool.stop();
+				dispatcher.stop();
+			}
+		}
+	}
+}
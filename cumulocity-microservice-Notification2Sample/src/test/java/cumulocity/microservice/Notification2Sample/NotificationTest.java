@@ -0,0 +1,121 @@
+package cumulocity.microservice.Notification2Sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.c8y.notification.model.API;
+import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.NotificationAssembler;
+import com.fasterxml.jackson.core.JsonFactory;
+
+public class NotificationTest {
+
+	@Test
+	public void parsesHeadersAndBody() {
+		Notification notification = Notification.parse("ack-1\n/t1/measurements/42\nCREATE\n\n{\"id\":\"1\"}");
+
+		assertEquals("ack-1", notification.getAckHeader());
+		assertEquals(List.of("/t1/measurements/42", "CREATE"), notification.getNotificationHeaders());
+		assertEquals(2, notification.getNotificationHeaderCount());
+		assertEquals("/t1/measurements/42", notification.getNotificationHeader(0).toString());
+		assertEquals("{\"id\":\"1\"}", notification.getMessage());
+		assertEquals("{\"id\":\"1\"}", notification.getBody().toString());
+	}
+
+	@Test
+	public void sourceIdFromSubscriptionPath() {
+		assertEquals("42", Notification.parse("ack-1\n/t1/measurements/42\nCREATE\n\n{}").getSourceId().toString());
+		assertNull(Notification.parse("ack-1\n\n{}").getSourceId());
+		assertNull(Notification.parse("ack-1\n/t1/measurements/\n\n{}").getSourceId());
+	}
+
+	@Test
+	public void apiFromSubscriptionPath() {
+		Notification notification = Notification.parse("ack-1\n/t1/managedobjects/42\nDELETE\n\n");
+
+		assertEquals("managedobjects", notification.getApi().toString());
+		assertEquals(API.INVENTORY, API.fromNotificationApi(notification.getApi()));
+		assertEquals(API.EMPTY, API.fromNotificationApi(Notification.parse("{}").getApi()));
+	}
+
+	@Test
+	public void messageWithoutHeaders() {
+		Notification notification = Notification.parse("{\"id\":\"1\"}");
+
+		assertNull(notification.getAckHeader());
+		assertTrue(notification.getNotificationHeaders().isEmpty());
+		assertEquals("{\"id\":\"1\"}", notification.getMessage());
+	}
+
+	@Test
+	public void headersWithoutEmptyLine() {
+		Notification notification = Notification.parse("ack-1\n/t1/measurements/42\nbody");
+
+		assertEquals("ack-1", notification.getAckHeader());
+		assertEquals(List.of("/t1/measurements/42"), notification.getNotificationHeaders());
+		assertEquals("body", notification.getMessage());
+	}
+
+	@Test
+	public void manyHeaders() {
+		StringBuilder message = new StringBuilder("ack-1\n");
+		for (int i = 0; i < 20; i++) {
+			message.append("header").append(i).append('\n');
+		}
+		message.append("\nbody");
+		Notification notification = Notification.parse(message.toString());
+
+		assertEquals(20, notification.getNotificationHeaders().size());
+		assertEquals("header19", notification.getNotificationHeader(19).toString());
+		assertEquals("body", notification.getMessage());
+	}
+
+	@Test
+	public void assemblesFragments() throws Exception {
+		NotificationAssembler assembler = new NotificationAssembler(new JsonFactory(), false);
+
+		assertNull(assembler.append("ack-1\n/t1/measure", false));
+		Notification notification = assembler.append("ments/42\nCREATE\n\n{}", true);
+
+		assertEquals("42", notification.getSourceId().toString());
+		assertEquals("ack-1\n/t1/measurements/42\nCREATE\n\n{}", notification.getRawMessage());
+	}
+
+	@Test
+	public void streamsFragmentsIntoTokens() throws Exception {
+		NotificationAssembler assembler = new NotificationAssembler(new JsonFactory(), true);
+
+		assertNull(assembler.append("ack-1\n/t1/measurements/42\nCRE", false));
+		assertNull(assembler.append("ATE\n", false));
+		assertNull(assembler.append("\n{\"text\":\"gr\u00fc", false));
+		assertNull(assembler.append("\u00dfe\",\"value\":2", false));
+		Notification notification = assembler.append("1.5}", true);
+
+		assertTrue(notification.isStreamed());
+		assertNull(notification.getRawMessage());
+		assertEquals("ack-1", notification.getAckHeader());
+		assertEquals(List.of("/t1/measurements/42", "CREATE"), notification.getNotificationHeaders());
+		assertEquals("{\"text\":\"gr\u00fc\u00dfe\",\"value\":21.5}", notification.getMessage());
+	}
+
+	@Test
+	public void malformedStreamedMessageIsReportedWhenComplete() throws Exception {
+		NotificationAssembler assembler = new NotificationAssembler(new JsonFactory(), true);
+
+		assertNull(assembler.append("ack-1\n\n{\"id\":]", false));
+		try {
+			assembler.append("}", true);
+			fail("malformed body accepted");
+		} catch (IOException expected) {
+			// the next message starts clean
+		}
+		assertEquals("{\"id\":\"2\"}", assembler.append("ack-2\n\n{\"id\":\"2\"}", true).getMessage());
+	}
+}
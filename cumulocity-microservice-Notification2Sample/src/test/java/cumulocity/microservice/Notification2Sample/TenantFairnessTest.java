@@ -0,0 +1,155 @@
+package cumulocity.microservice.Notification2Sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.c8y.notification.Properties;
+import com.c8y.notification.websocket.DuplicateFilter;
+import com.c8y.notification.websocket.Notification;
+import com.c8y.notification.websocket.NotificationCallback;
+import com.c8y.notification.websocket.NotificationDispatcher;
+import com.c8y.notification.websocket.NotificationDispatcher.BackpressurePolicy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class TenantFairnessTest {
+
+	private static final int TENANT_CAPACITY = 4;
+
+	private NotificationDispatcher dispatcher;
+	private final BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+	private final CountDownLatch gateStarted = new CountDownLatch(1);
+	private final CountDownLatch releaseGate = new CountDownLatch(1);
+
+	@Before
+	public void setUp() {
+		Properties properties = new Properties();
+		properties.setDispatcherTenantQueueCapacity(TENANT_CAPACITY);
+		/* one lane shared by all tenants */
+		properties.setDispatcherLanes(1);
+		properties.setDispatcherApiLanes(Map.of());
+		properties.setDispatcherTenantWeights(Map.of("t1", 3));
+		properties.setDispatcherBackpressure(BackpressurePolicy.BLOCK);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		dispatcher = new NotificationDispatcher(properties, registry, new DuplicateFilter(properties, registry));
+		dispatcher.start();
+	}
+
+	@After
+	public void tearDown() {
+		releaseGate.countDown();
+		dispatcher.stop();
+	}
+
+	@Test
+	public void floodingTenantOnlyBlocksItself() throws Exception {
+		closeGate();
+		for (int i = 0; i < TENANT_CAPACITY; i++) {
+			dispatch("t1", i);
+		}
+		CountDownLatch floodQueued = new CountDownLatch(1);
+		Thread flood = new Thread(() -> {
+			dispatch("t1", TENANT_CAPACITY);
+			floodQueued.countDown();
+		});
+		flood.start();
+		assertFalse(floodQueued.await(200, TimeUnit.MILLISECONDS));
+
+		/* the lane is not full for the other tenant */
+		for (int i = 0; i < TENANT_CAPACITY; i++) {
+			dispatch("t2", i);
+		}
+
+		releaseGate.countDown();
+		assertTrue(floodQueued.await(5, TimeUnit.SECONDS));
+		int t2 = 0;
+		for (int i = 0; i < 2 * TENANT_CAPACITY + 1; i++) {
+			if ("t2".equals(handled.poll(5, TimeUnit.SECONDS))) {
+				t2++;
+			}
+		}
+		assertEquals(TENANT_CAPACITY, t2);
+	}
+
+	@Test
+	public void tenantsAreServedByWeight() throws Exception {
+		closeGate();
+		for (int i = 0; i < TENANT_CAPACITY; i++) {
+			dispatch("t1", i);
+		}
+		for (int i = 0; i < TENANT_CAPACITY; i++) {
+			dispatch("t2", i);
+		}
+		releaseGate.countDown();
+
+		StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 2 * TENANT_CAPACITY; i++) {
+			order.append(handled.poll(5, TimeUnit.SECONDS)).append(' ');
+		}
+		/* t1 has weight 3, t2 the default weight 1 */
+		assertEquals("t1 t1 t1 t2 t1 t2 t2 t2 ", order.toString());
+	}
+
+	/*
+	 * Occupies the worker of the lane until releaseGate, the tenant queues fill up
+	 * meanwhile.
+	 */
+	private void closeGate() throws InterruptedException {
+		dispatcher.dispatch("gate", message(0), new Handler(() -> {
+			gateStarted.countDown();
+			try {
+				releaseGate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}), () -> {
+		});
+		assertTrue(gateStarted.await(5, TimeUnit.SECONDS));
+	}
+
+	private void dispatch(String tenantId, int n) {
+		dispatcher.dispatch(tenantId, message(n), new Handler(() -> handled.add(tenantId)), () -> {
+		});
+	}
+
+	private static Notification message(int n) {
+		return Notification.parse("ack-" + n + "\n/t/measurements/42\nCREATE\n\n{}");
+	}
+
+	private static class Handler implements NotificationCallback {
+		private final Runnable onNotification;
+
+		private Handler(Runnable onNotification) {
+			this.onNotification = onNotification;
+		}
+
+		@Override
+		public void onOpen(String tenantId, URI serverUri) {
+		}
+
+		@Override
+		public void onNotification(String tenantId, Notification notification) {
+			onNotification.run();
+		}
+
+		@Override
+		public void onError(String tenantId, Throwable t) {
+		}
+
+		@Override
+		public void onClose(String tenantId) {
+		}
+	}
+}
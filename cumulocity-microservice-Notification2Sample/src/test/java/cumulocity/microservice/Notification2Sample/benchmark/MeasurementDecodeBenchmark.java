@@ -0,0 +1,69 @@
+package cumulocity.microservice.Notification2Sample.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.c8y.notification.model.MeasurementNotificationRepresentation;
+import com.c8y.notification.util.MeasurementDecoder;
+import com.c8y.notification.websocket.Notification;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Compares decoding a measurement notification into
+ * {@link MeasurementNotificationRepresentation} (fragments as nested maps)
+ * with the streaming {@link MeasurementDecoder}. Both use one shared
+ * {@link ObjectReader}.
+ *
+ * Run the main method from the IDE or after mvn test-compile with the test
+ * classpath, add "-prof gc" to the JMH arguments to compare the allocation
+ * rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasurementDecodeBenchmark {
+
+	private final ObjectReader reader = new ObjectMapper().readerFor(MeasurementNotificationRepresentation.class);
+	private final MeasurementDecoder decoder = new MeasurementDecoder();
+	private final Notification notification = Notification.parse(NotificationPayloads.measurement());
+
+	@Benchmark
+	public void representation(Blackhole blackhole) throws IOException {
+		try (JsonParser parser = notification.getBodyParser(reader)) {
+			MeasurementNotificationRepresentation measurement = reader.readValue(parser);
+			blackhole.consume(measurement.getSource().getId());
+			blackhole.consume(measurement.getAttrs());
+		}
+	}
+
+	@Benchmark
+	public void streamingDecoder(Blackhole blackhole) throws IOException {
+		try (JsonParser parser = notification.getBodyParser(reader)) {
+			decoder.decode(parser, blackhole::consume);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder().include(MeasurementDecodeBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
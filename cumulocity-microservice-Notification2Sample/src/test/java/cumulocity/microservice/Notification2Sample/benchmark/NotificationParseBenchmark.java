@@ -0,0 +1,121 @@
+package cumulocity.microservice.Notification2Sample.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.c8y.notification.websocket.Notification;
+
+/**
+ * Compares the offset based {@link Notification#parse(String)} with the
+ * previous substring based implementation.
+ *
+ * Run the main method from the IDE or after mvn test-compile with the test
+ * classpath, add "-prof gc" to the JMH arguments to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationParseBenchmark {
+
+	/*
+	 * measurement: a single measurement notification, ~400 bytes. inventory: a
+	 * managed object update, ~4 KB. largeInventory: a gateway with many child
+	 * devices, ~64 KB.
+	 */
+	@Param({ "measurement", "inventory", "largeInventory" })
+	private String payload;
+
+	private String message;
+
+	@Setup
+	public void setup() {
+		switch (payload) {
+		case "measurement":
+			message = NotificationPayloads.measurement();
+			break;
+		case "inventory":
+			message = NotificationPayloads.managedObject(4 * 1024);
+			break;
+		default:
+			message = NotificationPayloads.managedObject(64 * 1024);
+		}
+	}
+
+	@Benchmark
+	public void offsetParse(Blackhole blackhole) {
+		Notification notification = Notification.parse(message);
+		blackhole.consume(notification.getAckHeader());
+		blackhole.consume(notification.getNotificationHeader(0));
+		blackhole.consume(notification.getBody());
+	}
+
+	@Benchmark
+	public void substringParse(Blackhole blackhole) {
+		LegacyNotification notification = LegacyNotification.parse(message);
+		blackhole.consume(notification.ackHeader);
+		blackhole.consume(notification.notificationHeaders.get(0));
+		blackhole.consume(notification.message);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder().include(NotificationParseBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	/*
+	 * The implementation before the offset based parser, kept for comparison.
+	 */
+	private static class LegacyNotification {
+		private final String ackHeader;
+		private final List<String> notificationHeaders;
+		private final String message;
+
+		private LegacyNotification(String ackHeader, List<String> notificationHeaders, String message) {
+			this.ackHeader = ackHeader;
+			this.notificationHeaders = notificationHeaders;
+			this.message = message;
+		}
+
+		private static LegacyNotification parse(String message) {
+			ArrayList<String> headers = new ArrayList<>(8);
+			while (true) {
+				int i = message.indexOf('\n');
+				if (i == -1) {
+					break;
+				}
+				String header = message.substring(0, i);
+				message = message.substring(i + 1);
+				if (header.length() == 0) {
+					break;
+				}
+				headers.add(header);
+			}
+			if (headers.isEmpty()) {
+				return new LegacyNotification(null, Collections.emptyList(), message);
+			}
+			return new LegacyNotification(headers.get(0),
+					Collections.unmodifiableList(headers.subList(1, headers.size())), message);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package cumulocity.microservice.Notification2Sample.benchmark;
+
+/**
+ * Notification 2.0 messages as they arrive on the websocket, used by the
+ * benchmarks.
+ */
+final class NotificationPayloads {
+
+	private static final String ACK_HEADER = "CgsIy/nABhC0oQEYACAAKAE=";
+
+	private NotificationPayloads() {
+	}
+
+	static String measurement() {
+		return ACK_HEADER + "\n/t12345/measurements/4711\nCREATE\n\n" + measurementBody("4711");
+	}
+
+	static String measurementBody(String sourceId) {
+		return "{\"self\":\"https://t12345.cumulocity.com/measurement/measurements/98765\",\"time\":"
+				+ "\"2024-03-01T10:15:30.123Z\",\"id\":\"98765\",\"source\":{\"self\":"
+				+ "\"https://t12345.cumulocity.com/inventory/managedObjects/" + sourceId + "\",\"id\":\"" + sourceId
+				+ "\"},\"type\":\"c8y_Environment\",\"c8y_Temperature\":{\"T\":{\"unit\":\"C\",\"value\":21.5}},"
+				+ "\"c8y_Humidity\":{\"H\":{\"unit\":\"%\",\"value\":48.25}},\"c8y_Pressure\":{\"P\":{\"unit\":"
+				+ "\"hPa\",\"value\":1013.2}}}";
+	}
+
+	/*
+	 * A managed object update padded with child device references until it has
+	 * at least the given size.
+	 */
+	static String managedObject(int size) {
+		StringBuilder body = new StringBuilder(size + 256);
+		body.append("{\"self\":\"https://t12345.cumulocity.com/inventory/managedObjects/4711\",\"id\":\"4711\",")
+				.append("\"name\":\"Gateway 4711\",\"type\":\"c8y_Gateway\",\"c8y_IsDevice\":{},")
+				.append("\"lastUpdated\":\"2024-03-01T10:15:30.123Z\",\"childDevices\":{\"references\":[");
+		int child = 0;
+		while (body.length() < size) {
+			if (child > 0) {
+				body.append(',');
+			}
+			body.append("{\"managedObject\":{\"self\":\"https://t12345.cumulocity.com/inventory/managedObjects/")
+					.append(10000 + child).append("\",\"id\":\"").append(10000 + child).append("\",\"name\":\"Child ")
+					.append(child).append("\"}}");
+			child++;
+		}
+		body.append("]}}");
+		return ACK_HEADER + "\n/t12345/managedobjects/4711\nUPDATE\n\n" + body;
+	}
+}